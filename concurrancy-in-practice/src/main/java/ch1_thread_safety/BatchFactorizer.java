@@ -0,0 +1,243 @@
+package ch1_thread_safety;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Factorizer behind {@link Complete}, with a batch entry point for clients that send many numbers at once.
+ *
+ * Small factors are removed by trial division with a prime table that is shared by all threads and only extended (by a
+ * sieve, under the lock) when a number needs more primes than it holds. Whatever is left above the table is split with
+ * Pollard's rho. The table is an immutable array republished through a volatile field, so readers never lock.
+ *
+ * Inputs are untrusted, so the work per number is bounded: numbers above {@link #MAX_BITS} bits are rejected and rho
+ * gives up after {@link #RHO_BUDGET} steps, failing that number only.
+ */
+@ThreadSafe
+public class BatchFactorizer {
+
+    //Trial division stops here, bigger factors are found by Pollard's rho.
+    private static final int TRIAL_LIMIT = 1 << 20;
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    public static final int MAX_BITS = 256;
+    //Rho steps per number, all splits together; about a second on 160-bit numbers.
+    public static final int RHO_BUDGET = 1 << 18;
+
+    private final Object extendLock = new Object();
+    //Immutable once published: primes in ascending order and the bound up to which the table is complete.
+    private volatile PrimeTable table = new PrimeTable(new int[]{2, 3, 5, 7}, 10);
+
+    /**
+     * Prime factors of {@code n} in ascending order, with multiplicity. 1 has no factors.
+     *
+     * @throws IllegalArgumentException if n is not positive or longer than {@link #MAX_BITS} bits
+     * @throws ArithmeticException if rho found no factor within {@link #RHO_BUDGET} steps
+     */
+    public BigInteger[] factor(BigInteger n) {
+        if (n.signum() <= 0) {
+            throw new IllegalArgumentException("can only factor positive numbers: " + n);
+        }
+        if (n.bitLength() > MAX_BITS) {
+            throw new IllegalArgumentException("can only factor numbers up to " + MAX_BITS + " bits: " + n.bitLength());
+        }
+        List<BigInteger> factors = new ArrayList<>();
+        BigInteger rest = trialDivide(n, factors);
+        if (!rest.equals(BigInteger.ONE)) {
+            splitLarge(rest, factors, new int[]{RHO_BUDGET});
+        }
+        Collections.sort(factors);
+        return factors.toArray(new BigInteger[0]);
+    }
+
+    /**
+     * Factors every number of the batch and returns the results in input order. Each distinct number is factored once,
+     * the distinct numbers in parallel on the common fork-join pool. A number that {@link #factor} rejects or gives up
+     * on gets a null result; the rest of the batch is unaffected.
+     */
+    public List<BigInteger[]> factorAll(List<BigInteger> numbers) {
+        Map<BigInteger, BigInteger[]> byNumber = new ConcurrentHashMap<>();
+        numbers.stream()
+                .distinct()
+                .collect(Collectors.toList())
+                .parallelStream()
+                .forEach(n -> {
+                    try {
+                        byNumber.put(n, factor(n));
+                    } catch (IllegalArgumentException | ArithmeticException e) {
+                        //Left out of the map, so its results are null.
+                    }
+                });
+        List<BigInteger[]> results = new ArrayList<>(numbers.size());
+        for (BigInteger n : numbers) {
+            //Duplicates get their own copy, callers may modify the arrays.
+            BigInteger[] factors = byNumber.get(n);
+            results.add(factors == null ? null : factors.clone());
+        }
+        return results;
+    }
+
+    private BigInteger trialDivide(BigInteger n, List<BigInteger> factors) {
+        if (n.bitLength() < 63) {
+            return BigInteger.valueOf(trialDivide(n.longValue(), factors));
+        }
+        BigInteger rest = n;
+        PrimeTable t = primesUpTo(TRIAL_LIMIT);
+        for (int p : t.primes) {
+            BigInteger prime = BigInteger.valueOf(p);
+            if (prime.multiply(prime).compareTo(rest) > 0) {
+                break;
+            }
+            for (BigInteger[] qr = rest.divideAndRemainder(prime); qr[1].signum() == 0; qr = rest.divideAndRemainder(prime)) {
+                factors.add(prime);
+                rest = qr[0];
+            }
+        }
+        return rest;
+    }
+
+    //Most inputs fit in a long, where trial division needs no BigInteger arithmetic at all.
+    private long trialDivide(long n, List<BigInteger> factors) {
+        long limit = Math.min((long) Math.sqrt((double) n) + 1, TRIAL_LIMIT);
+        PrimeTable t = primesUpTo((int) limit);
+        for (int p : t.primes) {
+            if ((long) p * p > n) {
+                break;
+            }
+            while (n % p == 0) {
+                factors.add(BigInteger.valueOf(p));
+                n /= p;
+            }
+        }
+        return n;
+    }
+
+    //budget[0] is the number of rho steps left for the whole number.
+    private void splitLarge(BigInteger n, List<BigInteger> factors, int[] budget) {
+        if (n.isProbablePrime(50)) {
+            factors.add(n);
+            return;
+        }
+        BigInteger d = pollardRho(n, budget);
+        splitLarge(d, factors, budget);
+        splitLarge(n.divide(d), factors, budget);
+    }
+
+    private static BigInteger pollardRho(BigInteger n, int[] budget) {
+        if (!n.testBit(0)) {
+            return TWO;
+        }
+        Random random = ThreadLocalRandom.current();
+        while (true) {
+            BigInteger c = new BigInteger(n.bitLength(), random).mod(n);
+            BigInteger x = new BigInteger(n.bitLength(), random).mod(n);
+            BigInteger y = x;
+            BigInteger d = BigInteger.ONE;
+            while (d.equals(BigInteger.ONE)) {
+                if (--budget[0] < 0) {
+                    throw new ArithmeticException("no factor of a " + n.bitLength() + "-bit number found within budget");
+                }
+                x = x.multiply(x).add(c).mod(n);
+                y = y.multiply(y).add(c).mod(n);
+                y = y.multiply(y).add(c).mod(n);
+                d = x.subtract(y).abs().gcd(n);
+            }
+            if (!d.equals(n)) {
+                return d;
+            }
+        }
+    }
+
+    private PrimeTable primesUpTo(int limit) {
+        PrimeTable t = table;
+        if (t.complete >= limit) {
+            return t;
+        }
+        synchronized (extendLock) {
+            t = table;
+            if (t.complete < limit) {
+                //Grow at least twice, so a series of slightly bigger numbers does not sieve again every time.
+                t = PrimeTable.sieve((int) Math.min(TRIAL_LIMIT, Math.max(limit, 2L * t.complete)));
+                table = t;
+            }
+            return t;
+        }
+    }
+
+    private static final class PrimeTable {
+        private final int[] primes;
+        private final int complete;
+
+        PrimeTable(int[] primes, int complete) {
+            this.primes = primes;
+            this.complete = complete;
+        }
+
+        static PrimeTable sieve(int limit) {
+            boolean[] composite = new boolean[limit + 1];
+            int[] primes = new int[Math.max(16, (int) (1.3 * limit / Math.log(Math.max(limit, 3))))];
+            int count = 0;
+            for (int i = 2; i <= limit; i++) {
+                if (!composite[i]) {
+                    if (count == primes.length) {
+                        primes = Arrays.copyOf(primes, count * 2);
+                    }
+                    primes[count++] = i;
+                    for (long j = (long) i * i; j <= limit; j += i) {
+                        composite[(int) j] = true;
+                    }
+                }
+            }
+            return new PrimeTable(Arrays.copyOf(primes, count), limit);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchFactorizer factorizer = new BatchFactorizer();
+        Random random = new Random(42);
+        List<BigInteger> batch = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            //A quarter of the batch repeats earlier numbers, as real clients do.
+            batch.add(i % 4 == 3 ? batch.get(random.nextInt(batch.size())) : BigInteger.valueOf(random.nextLong() >>> 24));
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService requests = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+                long start = System.nanoTime();
+                for (BigInteger n : batch) {
+                    factorizer.factor(n);
+                }
+                long sequential = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<Future<BigInteger[]>> futures = new ArrayList<>();
+                for (BigInteger n : batch) {
+                    futures.add(requests.submit(() -> factorizer.factor(n)));
+                }
+                for (Future<BigInteger[]> f : futures) {
+                    f.get();
+                }
+                long perRequest = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                factorizer.factorAll(batch);
+                long batched = System.nanoTime() - start;
+
+                if (round == 1) {
+                    System.out.printf("%d numbers: sequential calls %.0f/s, per-request on %d threads %.0f/s, batch %.0f/s%n",
+                            batch.size(), rate(batch, sequential), threads, rate(batch, perRequest), rate(batch, batched));
+                }
+            }
+        } finally {
+            requests.shutdown();
+        }
+    }
+
+    private static double rate(List<?> batch, long nanos) {
+        return batch.size() / (nanos / 1e9);
+    }
+}
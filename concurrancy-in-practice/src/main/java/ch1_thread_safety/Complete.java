@@ -1,18 +1,132 @@
 package ch1_thread_safety;
 
+import metrics.MetricsRegistry;
+
 import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Complete implements Servlet {
+    private final BatchFactorizer factorizer = new BatchFactorizer();
     BigInteger lastNumber;
     BigInteger[] lastFactor;
     private long hits;
     private long cacheHits;
 
+    // Async mode, enabled with the "async" init parameter. Null when the servlet runs in the default blocking mode.
+    private ExecutorService factorExecutor;
+    private Semaphore backlog;
+    private long asyncTimeoutMillis;
+
     @Override
     public void service(ServletRequest servletRequest, ServletResponse servletResponse) throws ServletException, IOException {
+        if (factorExecutor != null && servletRequest.isAsyncSupported()) {
+            serviceAsync(servletRequest, servletResponse);
+            return;
+        }
         BigInteger i = extractFromRequest(servletRequest);
+        encodeIntToResponse(servletResponse, factorCached(i));
+    }
+
+    // Releases the container thread right away; the factorization runs on the dedicated pool and completes the
+    // response from there. When threads and queue are all taken the request fails fast with a 503 instead of waiting.
+    private void serviceAsync(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+        if (!backlog.tryAcquire()) {
+            sendError(servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        AsyncContext asyncContext;
+        // Set by whoever answers first: the worker with the result or an error, or the listener on timeout or error.
+        AtomicBoolean answered = new AtomicBoolean();
+        try {
+            asyncContext = servletRequest.startAsync();
+            asyncContext.setTimeout(asyncTimeoutMillis);
+            asyncContext.addListener(new AsyncListener() {
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {
+                    answer(event.getAsyncContext(), answered, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                }
+
+                @Override
+                public void onError(AsyncEvent event) throws IOException {
+                    answer(event.getAsyncContext(), answered, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                }
+
+                @Override
+                public void onComplete(AsyncEvent event) {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        } catch (RuntimeException e) {
+            backlog.release();
+            throw e;
+        }
+        // The executor queue holds at least as many tasks as there are permits, so execute never rejects here.
+        factorExecutor.execute(() -> {
+            try {
+                factorAsync(asyncContext, answered);
+            } catch (IOException ignored) {
+                // The client went away; the request has been completed either way.
+            } finally {
+                backlog.release();
+            }
+        });
+    }
+
+    private void factorAsync(AsyncContext asyncContext, AtomicBoolean answered) throws IOException {
+        if (answered.get()) {
+            return; // Timed out while queued, nobody is waiting for the result.
+        }
+        BigInteger[] factors;
+        try {
+            factors = factorCached(extractFromRequest(asyncContext.getRequest()));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            answer(asyncContext, answered, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        if (answered.compareAndSet(false, true)) {
+            try {
+                encodeIntToResponse(asyncContext.getResponse(), factors);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(asyncContext.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    // Answers with an error status and completes, unless the request has already been answered.
+    private static void answer(AsyncContext asyncContext, AtomicBoolean answered, int status) throws IOException {
+        if (answered.compareAndSet(false, true)) {
+            try {
+                sendError(asyncContext.getResponse(), status);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    // Plain ServletResponses carry no status; their clients only see an empty response.
+    private static void sendError(ServletResponse servletResponse, int status) throws IOException {
+        if (servletResponse instanceof HttpServletResponse && !servletResponse.isCommitted()) {
+            HttpServletResponse response = (HttpServletResponse) servletResponse;
+            if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+                response.setHeader("Retry-After", "1");
+            }
+            response.sendError(status);
+        }
+    }
+
+    private BigInteger[] factorCached(BigInteger i) {
         BigInteger[] factor = null;
         synchronized (this) {
             hits++;
@@ -28,12 +142,34 @@ public class Complete implements Servlet {
                 lastFactor = factor.clone();
             }
         }
-        encodeIntToResponse(servletResponse, factor);
+        return factor;
     }
 
     @Override
     public void init(ServletConfig servletConfig) throws ServletException {
+        if (Boolean.parseBoolean(servletConfig.getInitParameter("async"))) {
+            int threads = intParameter(servletConfig, "asyncThreads", Runtime.getRuntime().availableProcessors());
+            int queued = intParameter(servletConfig, "asyncBacklog", 100);
+            asyncTimeoutMillis = intParameter(servletConfig, "asyncTimeoutMillis", 30_000);
+            backlog = new Semaphore(threads + queued);
+            factorExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads + queued), r -> {
+                        Thread t = new Thread(r, "factorizer");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+        // Gauges read the counters under the lock only when sampled, service() pays nothing extra.
+        MetricsRegistry.global().gauge("Complete.hits", this::getHits);
+        MetricsRegistry.global().gauge("Complete.cacheHits", this::getCacheHits);
+    }
 
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
     }
 
     @Override
@@ -49,11 +185,33 @@ public class Complete implements Servlet {
 
     @Override
     public void destroy() {
+        if (factorExecutor != null) {
+            factorExecutor.shutdown();
+        }
+    }
 
+    private static int intParameter(ServletConfig servletConfig, String name, int defaultValue) throws ServletException {
+        String value = servletConfig.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("init parameter " + name + " is not a number: " + value);
+        }
+    }
+
+    // Batch entry point: one call for many numbers instead of a service() round trip each. Results are in input order.
+    public List<BigInteger[]> factorBatch(List<BigInteger> numbers) {
+        synchronized (this) {
+            hits += numbers.size();
+        }
+        return factorizer.factorAll(numbers);
     }
 
     private BigInteger[] factor(BigInteger i) {
-        return new BigInteger[0];
+        return factorizer.factor(i);
     }
 
     private void encodeIntToResponse(ServletResponse servletResponse, BigInteger[] bigIntegers) {
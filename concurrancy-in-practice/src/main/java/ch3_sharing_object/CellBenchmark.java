@@ -0,0 +1,77 @@
+package ch3_sharing_object;
+
+import ch5_building_blocks.TestHarness;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Cost per operation of each {@link LongCell} access mode with several threads hammering one cell, against the
+ * monitor of {@link SynchronizedInteger}, then the effect of padding when every thread has its own cell.
+ *
+ * Numbers are indicative only: the JIT may fold plain and opaque stores in a loop, which is exactly the freedom those
+ * modes give it.
+ */
+public class CellBenchmark {
+
+    private static final int OPS = 5_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        TestHarness harness = new TestHarness();
+
+        LongCell shared = new LongCell();
+        SynchronizedInteger monitor = new SynchronizedInteger();
+        report("plain set", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) shared.setPlain(i);
+        }));
+        report("opaque set", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) shared.setOpaque(i);
+        }));
+        report("release set", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) shared.setRelease(i);
+        }));
+        report("volatile set", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) shared.set(i);
+        }));
+        report("acquire get", threads, harness.timeTask(threads, () -> {
+            long sum = 0;
+            for (int i = 0; i < OPS; i++) sum += shared.getAcquire();
+            shared.setOpaque(sum);
+        }));
+        report("getAndAdd", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) shared.getAndAdd(1);
+        }));
+        report("CAS loop", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) {
+                long v;
+                do {
+                    v = shared.get();
+                } while (!shared.compareAndSet(v, v + 1));
+            }
+        }));
+        report("synchronized set", threads, harness.timeTask(threads, () -> {
+            for (int i = 0; i < OPS; i++) monitor.setValue(i);
+        }));
+
+        //One cell per thread: without padding neighbouring cells can share a cache line.
+        report("own cell", threads, ownCells(harness, threads, i -> new LongCell()));
+        report("own padded cell", threads, ownCells(harness, threads, i -> LongCell.padded(0)));
+    }
+
+    private static long ownCells(TestHarness harness, int threads, IntFunction<LongCell> cells) throws InterruptedException {
+        LongCell[] perThread = new LongCell[threads];
+        for (int i = 0; i < threads; i++) {
+            perThread[i] = cells.apply(i);
+        }
+        AtomicInteger next = new AtomicInteger();
+        return harness.timeTask(threads, () -> {
+            LongCell cell = perThread[next.getAndIncrement()];
+            for (int i = 0; i < OPS; i++) cell.getAndAdd(1);
+        });
+    }
+
+    private static void report(String mode, int threads, long nanos) {
+        System.out.printf("%-18s %d threads: %6.2f ns/op%n", mode, threads, (double) nanos / ((long) OPS * threads));
+    }
+}
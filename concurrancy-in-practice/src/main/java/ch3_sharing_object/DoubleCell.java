@@ -0,0 +1,133 @@
+package ch3_sharing_object;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Shared double with an explicit memory mode per access, the middle ground between {@link MutableInteger} (no
+ * guarantees) and {@link SynchronizedInteger} (a monitor for every access).
+ *
+ * getAndAdd on a double is a CAS loop inside the VarHandle, so under heavy contention a LongAdder-style striped sum
+ * scales better.
+ *
+ * <ul>
+ * <li>plain: no ordering or visibility guarantee, only for values confined to one thread at the time.</li>
+ * <li>opaque: eventually visible and never torn, but not ordered with other variables. Good for counters read by a
+ * monitoring thread.</li>
+ * <li>acquire/release: a setRelease publishes every write made before it to the thread whose getAcquire reads the
+ * value. Enough for a single writer handing data over.</li>
+ * <li>volatile: sequentially consistent, same as a volatile field.</li>
+ * </ul>
+ *
+ * Cells that are updated by different threads and allocated together should be created with {@link #padded} so they
+ * do not share a cache line (false sharing). Every cell has a cache line of padding before its value, a padded one
+ * has another one after it.
+ */
+@ThreadSafe
+public class DoubleCell extends DoubleCellValue {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(DoubleCellValue.class, "value", double.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public DoubleCell() {
+    }
+
+    public DoubleCell(double initialValue) {
+        this.value = initialValue;
+    }
+
+    /**
+     * Returns a cell with a cache line of padding on each side of its value, so no other object shares its line.
+     */
+    public static DoubleCell padded(double initialValue) {
+        return new Padded(initialValue);
+    }
+
+    public double getPlain() {
+        return value;
+    }
+
+    public void setPlain(double newValue) {
+        value = newValue;
+    }
+
+    public double getOpaque() {
+        return (double) VALUE.getOpaque(this);
+    }
+
+    public void setOpaque(double newValue) {
+        VALUE.setOpaque(this, newValue);
+    }
+
+    public double getAcquire() {
+        return (double) VALUE.getAcquire(this);
+    }
+
+    public void setRelease(double newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+
+    public double get() {
+        return (double) VALUE.getVolatile(this);
+    }
+
+    public void set(double newValue) {
+        VALUE.setVolatile(this, newValue);
+    }
+
+    //Compares the bit patterns, so NaN matches NaN and 0.0 does not match -0.0.
+    public boolean compareAndSet(double expectedValue, double newValue) {
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    public double getAndSet(double newValue) {
+        return (double) VALUE.getAndSet(this, newValue);
+    }
+
+    public double getAndAdd(double delta) {
+        return (double) VALUE.getAndAdd(this, delta);
+    }
+
+    public double addAndGet(double delta) {
+        return (double) VALUE.getAndAdd(this, delta) + delta;
+    }
+
+    //Release-only add, for a counter with a single writer.
+    public void lazyAdd(double delta) {
+        VALUE.setRelease(this, value + delta);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Padded extends DoubleCell {
+        private long p11, p12, p13, p14, p15, p16, p17, p18;
+
+        Padded(double initialValue) {
+            super(initialValue);
+        }
+    }
+}
+
+//HotSpot lays out superclass fields before subclass fields, so this padding comes before the value
+//of every DoubleCell, and that of DoubleCell.Padded after it, whatever is allocated around the cell.
+@SuppressWarnings("unused")
+abstract class DoubleCellPadding {
+    private long p01, p02, p03, p04, p05, p06, p07, p08;
+}
+
+abstract class DoubleCellValue extends DoubleCellPadding {
+    //Only accessed by DoubleCell, package-private for its VarHandle.
+    double value;
+}
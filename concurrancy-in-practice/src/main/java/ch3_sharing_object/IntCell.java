@@ -0,0 +1,131 @@
+package ch3_sharing_object;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Shared int with an explicit memory mode per access, the middle ground between {@link MutableInteger} (no
+ * guarantees) and {@link SynchronizedInteger} (a monitor for every access).
+ *
+ * <ul>
+ * <li>plain: no ordering or visibility guarantee, only for values confined to one thread at the time.</li>
+ * <li>opaque: eventually visible and never torn, but not ordered with other variables. Good for counters read by a
+ * monitoring thread.</li>
+ * <li>acquire/release: a setRelease publishes every write made before it to the thread whose getAcquire reads the
+ * value. Enough for a single writer handing data over.</li>
+ * <li>volatile: sequentially consistent, same as a volatile field.</li>
+ * </ul>
+ *
+ * Cells that are updated by different threads and allocated together should be created with {@link #padded} so they
+ * do not share a cache line (false sharing). Every cell has a cache line of padding before its value, a padded one
+ * has another one after it.
+ */
+@ThreadSafe
+public class IntCell extends IntCellValue {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(IntCellValue.class, "value", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public IntCell() {
+    }
+
+    public IntCell(int initialValue) {
+        this.value = initialValue;
+    }
+
+    /**
+     * Returns a cell with a cache line of padding on each side of its value, so no other object shares its line.
+     */
+    public static IntCell padded(int initialValue) {
+        return new Padded(initialValue);
+    }
+
+    public int getPlain() {
+        return value;
+    }
+
+    public void setPlain(int newValue) {
+        value = newValue;
+    }
+
+    public int getOpaque() {
+        return (int) VALUE.getOpaque(this);
+    }
+
+    public void setOpaque(int newValue) {
+        VALUE.setOpaque(this, newValue);
+    }
+
+    public int getAcquire() {
+        return (int) VALUE.getAcquire(this);
+    }
+
+    public void setRelease(int newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+
+    public int get() {
+        return (int) VALUE.getVolatile(this);
+    }
+
+    public void set(int newValue) {
+        VALUE.setVolatile(this, newValue);
+    }
+
+    public boolean compareAndSet(int expectedValue, int newValue) {
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    public int getAndSet(int newValue) {
+        return (int) VALUE.getAndSet(this, newValue);
+    }
+
+    public int getAndAdd(int delta) {
+        return (int) VALUE.getAndAdd(this, delta);
+    }
+
+    public int addAndGet(int delta) {
+        return (int) VALUE.getAndAdd(this, delta) + delta;
+    }
+
+    //Release-only add, for a counter with a single writer.
+    public void lazyAdd(int delta) {
+        VALUE.setRelease(this, value + delta);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Padded extends IntCell {
+        private long p11, p12, p13, p14, p15, p16, p17, p18;
+
+        Padded(int initialValue) {
+            super(initialValue);
+        }
+    }
+}
+
+//HotSpot lays out superclass fields before subclass fields, so this padding comes before the value
+//of every IntCell, and that of IntCell.Padded after it, whatever is allocated around the cell.
+@SuppressWarnings("unused")
+abstract class IntCellPadding {
+    //Takes the gap after the object header, which HotSpot would otherwise fill with the value.
+    private int p00;
+    private long p01, p02, p03, p04, p05, p06, p07, p08;
+}
+
+abstract class IntCellValue extends IntCellPadding {
+    //Only accessed by IntCell, package-private for its VarHandle.
+    int value;
+}
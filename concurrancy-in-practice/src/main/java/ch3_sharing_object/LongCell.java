@@ -0,0 +1,129 @@
+package ch3_sharing_object;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Shared long with an explicit memory mode per access, the middle ground between {@link MutableInteger} (no
+ * guarantees) and {@link SynchronizedInteger} (a monitor for every access).
+ *
+ * <ul>
+ * <li>plain: no ordering or visibility guarantee, only for values confined to one thread at the time.</li>
+ * <li>opaque: eventually visible and never torn, but not ordered with other variables. Good for counters read by a
+ * monitoring thread.</li>
+ * <li>acquire/release: a setRelease publishes every write made before it to the thread whose getAcquire reads the
+ * value. Enough for a single writer handing data over.</li>
+ * <li>volatile: sequentially consistent, same as a volatile field.</li>
+ * </ul>
+ *
+ * Cells that are updated by different threads and allocated together should be created with {@link #padded} so they
+ * do not share a cache line (false sharing). Every cell has a cache line of padding before its value, a padded one
+ * has another one after it.
+ */
+@ThreadSafe
+public class LongCell extends LongCellValue {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(LongCellValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public LongCell() {
+    }
+
+    public LongCell(long initialValue) {
+        this.value = initialValue;
+    }
+
+    /**
+     * Returns a cell with a cache line of padding on each side of its value, so no other object shares its line.
+     */
+    public static LongCell padded(long initialValue) {
+        return new Padded(initialValue);
+    }
+
+    public long getPlain() {
+        return value;
+    }
+
+    public void setPlain(long newValue) {
+        value = newValue;
+    }
+
+    public long getOpaque() {
+        return (long) VALUE.getOpaque(this);
+    }
+
+    public void setOpaque(long newValue) {
+        VALUE.setOpaque(this, newValue);
+    }
+
+    public long getAcquire() {
+        return (long) VALUE.getAcquire(this);
+    }
+
+    public void setRelease(long newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+
+    public long get() {
+        return (long) VALUE.getVolatile(this);
+    }
+
+    public void set(long newValue) {
+        VALUE.setVolatile(this, newValue);
+    }
+
+    public boolean compareAndSet(long expectedValue, long newValue) {
+        return VALUE.compareAndSet(this, expectedValue, newValue);
+    }
+
+    public long getAndSet(long newValue) {
+        return (long) VALUE.getAndSet(this, newValue);
+    }
+
+    public long getAndAdd(long delta) {
+        return (long) VALUE.getAndAdd(this, delta);
+    }
+
+    public long addAndGet(long delta) {
+        return (long) VALUE.getAndAdd(this, delta) + delta;
+    }
+
+    //Release-only add, for a counter with a single writer.
+    public void lazyAdd(long delta) {
+        VALUE.setRelease(this, value + delta);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Padded extends LongCell {
+        private long p11, p12, p13, p14, p15, p16, p17, p18;
+
+        Padded(long initialValue) {
+            super(initialValue);
+        }
+    }
+}
+
+//HotSpot lays out superclass fields before subclass fields, so this padding comes before the value
+//of every LongCell, and that of LongCell.Padded after it, whatever is allocated around the cell.
+@SuppressWarnings("unused")
+abstract class LongCellPadding {
+    private long p01, p02, p03, p04, p05, p06, p07, p08;
+}
+
+abstract class LongCellValue extends LongCellPadding {
+    //Only accessed by LongCell, package-private for its VarHandle.
+    long value;
+}
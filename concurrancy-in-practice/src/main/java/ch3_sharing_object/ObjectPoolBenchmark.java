@@ -0,0 +1,93 @@
+package ch3_sharing_object;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the same short task, which needs a scratch Person, with a ThreadLocal and with a {@link StripedObjectPool}, once
+ * on a fixed pool of platform threads and once with a thread per task. Reports throughput and how many Person objects
+ * each approach allocated.
+ *
+ * Thread per task uses virtual threads when the JDK has them (looked up reflectively so this compiles on older JDKs)
+ * and falls back to fewer platform threads otherwise.
+ */
+public class ObjectPoolBenchmark {
+
+    private static final LongAdder sink = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int workers = Runtime.getRuntime().availableProcessors();
+        ThreadFactory virtual = virtualThreadFactory();
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            run("platform pool", pool, 1_000_000);
+        } finally {
+            pool.shutdown();
+        }
+        if (virtual != null) {
+            System.out.println("thread per task: virtual threads from " + virtual.getClass().getName());
+            run("virtual per task", r -> virtual.newThread(r).start(), 1_000_000);
+        } else {
+            System.out.println("virtual threads not available, using platform thread per task");
+            run("platform per task", r -> new Thread(r).start(), 50_000);
+        }
+    }
+
+    private static void run(String name, Executor executor, int tasks) throws InterruptedException {
+        LongAdder threadLocalCreated = new LongAdder();
+        ThreadLocal<Person> threadLocal = ThreadLocal.withInitial(() -> {
+            threadLocalCreated.increment();
+            return new Person();
+        });
+        StripedObjectPool<Person> pool = new StripedObjectPool<>(Person::new);
+
+        long tlNanos = time(executor, tasks, () -> use(threadLocal.get()));
+        long poolNanos = time(executor, tasks, () -> {
+            Person p = pool.borrow();
+            try {
+                use(p);
+            } finally {
+                pool.release(p);
+            }
+        });
+
+        System.out.printf("%-18s ThreadLocal: %,10.0f tasks/s %,9d objects | StripedObjectPool: %,10.0f tasks/s %,9d objects%n",
+                name, tasks / (tlNanos / 1e9), threadLocalCreated.sum(), tasks / (poolNanos / 1e9), pool.created());
+    }
+
+    private static void use(Person p) {
+        p.setAge(p.age + 1);
+        sink.add(p.age);
+    }
+
+    private static long time(Executor executor, int tasks, Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            //Through the public interface: the builder's own class is not public, so its methods are not accessible.
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ch3_sharing_object;
+
+class Person{
+    int age;
+    String name;
+
+
+
+    public void setAge(int age) {
+        this.age = age;
+    }
+}
+
+
@@ -0,0 +1,118 @@
+package ch3_sharing_object;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of reusable objects, striped by thread instead of owned by thread.
+ *
+ * A ThreadLocal keeps one object per thread, which is fine for a fixed pool of platform threads but means one object per
+ * task once every task gets its own (virtual) thread. Here each thread hashes to a stripe of a few slots: a fixed
+ * worker keeps hitting the same stripe and gets ThreadLocal-like reuse, while any number of short-lived threads share
+ * the same bounded set of objects.
+ *
+ * Borrow and release are a couple of CAS on the caller's stripe, no lock is taken. An object is confined to the thread
+ * that borrowed it until it is released; the CAS that hands it over publishes its state safely.
+ */
+@ThreadSafe
+public class StripedObjectPool<T> {
+
+    //Stripes start 16 references apart, so two stripes never share a cache line.
+    private static final int MIN_STRIDE = 16;
+
+    private final Supplier<? extends T> factory;
+    private final Consumer<? super T> reset;
+    private final AtomicReferenceArray<T> slots;
+    private final int stripeMask;
+    private final int slotsPerStripe;
+    private final int stride;
+    private final LongAdder created = new LongAdder();
+
+    public StripedObjectPool(Supplier<? extends T> factory) {
+        this(factory, t -> {
+        }, Runtime.getRuntime().availableProcessors() * 2, 4);
+    }
+
+    /**
+     * @param reset          called on release, before the object becomes visible to other borrowers
+     * @param stripes        rounded up to a power of two; about twice the core count is a good default
+     * @param slotsPerStripe objects kept per stripe, so at most stripes * slotsPerStripe objects are pooled
+     */
+    public StripedObjectPool(Supplier<? extends T> factory, Consumer<? super T> reset, int stripes, int slotsPerStripe) {
+        if (stripes <= 0 || slotsPerStripe <= 0) {
+            throw new IllegalArgumentException("stripes = " + stripes + ", slotsPerStripe = " + slotsPerStripe);
+        }
+        int stripeCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.factory = factory;
+        this.reset = reset;
+        this.stripeMask = stripeCount - 1;
+        this.slotsPerStripe = slotsPerStripe;
+        this.stride = Math.max(MIN_STRIDE, slotsPerStripe);
+        this.slots = new AtomicReferenceArray<>(stripeCount * stride);
+    }
+
+    /**
+     * Takes a pooled object from the caller's stripe or its neighbour, or creates a new one when both are empty.
+     */
+    public T borrow() {
+        int stripe = stripe();
+        T t = poll(stripe);
+        if (t == null) {
+            t = poll((stripe + 1) & stripeMask);
+        }
+        if (t == null) {
+            created.increment();
+            t = factory.get();
+        }
+        return t;
+    }
+
+    /**
+     * Gives {@code t} back. Returns false when the stripes are full and the object was left to the GC.
+     */
+    public boolean release(T t) {
+        reset.accept(t);
+        int stripe = stripe();
+        return offer(stripe, t) || offer((stripe + 1) & stripeMask, t);
+    }
+
+    public long created() {
+        return created.sum();
+    }
+
+    public int capacity() {
+        return (stripeMask + 1) * slotsPerStripe;
+    }
+
+    private T poll(int stripe) {
+        int base = stripe * stride;
+        for (int i = base; i < base + slotsPerStripe; i++) {
+            T t = slots.get(i);
+            if (t != null && slots.compareAndSet(i, t, null)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private boolean offer(int stripe, T t) {
+        int base = stripe * stride;
+        for (int i = base; i < base + slotsPerStripe; i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int stripe() {
+        //Thread ids are sequential, spread them before masking.
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+}
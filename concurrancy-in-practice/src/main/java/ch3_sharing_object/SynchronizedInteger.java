@@ -1,17 +1,23 @@
 package ch3_sharing_object;
 
+import metrics.ProfiledLock;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
+import java.util.concurrent.locks.Lock;
+
 @ThreadSafe
 public class SynchronizedInteger {
+    private final Lock profiled = ProfiledLock.ifEnabled("SynchronizedInteger");
     @GuardedBy("this") private int value;
 
-    public synchronized int getValue() {
-        return value;
+    public int getValue() {
+        return ProfiledLock.withLock(profiled, this, () -> value);
     }
 
-    public synchronized void setValue(int value) {
-        this.value = value;
+    public void setValue(int value) {
+        ProfiledLock.withLock(profiled, this, () -> {
+            this.value = value;
+        });
     }
 }
@@ -17,10 +17,30 @@ public class ThreadConfinement {
         //withInitialValue();
         //withSetMethod();
         //withInitialAndSet();
+        //withStripedPool();
 
         withImmutability();
     }
 
+    private static void withStripedPool() throws InterruptedException {
+        //A ThreadLocal would create one Person per thread below. The pool is striped by thread, so the threads share
+        //a bounded number of Person objects; each one is still confined to its borrower until it is released.
+        StripedObjectPool<Person> pool = new StripedObjectPool<>(Person::new);
+        for (int i = 0; i < 1000; i++) {
+            Thread t = new Thread(() -> {
+                Person p = pool.borrow();
+                try {
+                    p.setAge(p.age + 1);
+                } finally {
+                    pool.release(p);
+                }
+            });
+            t.start();
+            t.join();
+        }
+        System.out.println("1000 threads used " + pool.created() + " Person objects");
+    }
+
     private static void withImmutability() throws InterruptedException {
 
         new Thread(() ->
@@ -92,16 +112,3 @@ public class ThreadConfinement {
     }
 
 }
-
-class Person{
-    int age;
-    String name;
-
-
-
-    public void setAge(int age) {
-        this.age = age;
-    }
-}
-
-
@@ -1,28 +1,55 @@
 package ch4_composing_object;
 
+import metrics.ProfiledLock;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.function.UnaryOperator;
 
 //annotation will be used as Thread safety policy documentation.
 @ThreadSafe
 public class Counter {
+    private final Lock profiled = ProfiledLock.ifEnabled("Counter");
     @GuardedBy("this")
     private long value = 0;
 
-    public synchronized long  getValue() {
-        return value;
+    public long  getValue() {
+        return ProfiledLock.withLock(profiled, this, () -> value);
     }
 
-    public synchronized long increment() {
+    public long increment() {
+        return ProfiledLock.withLock(profiled, this, this::incrementLocked);
+    }
+
+    //Hands out up to n values in one step and returns the first one: the caller owns
+    //[first, first + Math.min(n, Long.MAX_VALUE - first)). Fewer than n only right before the counter overflows.
+    public long reserve(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        return ProfiledLock.withLock(profiled, this, () -> reserveLocked(n));
+    }
+
+    @GuardedBy("this")
+    private long incrementLocked() {
         if(value == Long.MAX_VALUE){
             throw  new IllegalStateException("counter overflow");
         }
         Collections.synchronizedList(Collections.EMPTY_LIST);
         return value++;
     }
+
+    @GuardedBy("this")
+    private long reserveLocked(long n) {
+        if(value == Long.MAX_VALUE){
+            throw  new IllegalStateException("counter overflow");
+        }
+        long first = value;
+        value += Math.min(n, Long.MAX_VALUE - value);
+        return first;
+    }
 }
 
 class ImprovedList<E> implements List<E>{
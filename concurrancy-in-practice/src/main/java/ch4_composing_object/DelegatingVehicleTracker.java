@@ -1,20 +1,37 @@
 package ch4_composing_object;
 
-import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 @ThreadSafe
-public class DelegatingVehicleTracker {
+public class DelegatingVehicleTracker implements VehicleJournal.Source {
     private final Map<String,Point> locations;
     private final Map<String, Point> unmodifiableMap;
+    private final VehicleJournal journal; // null when locations live in memory only
+    private final GeofenceEngine geofences; // null when nobody watches geofences
 
     public DelegatingVehicleTracker(Map<String,Point> point) {
+        this(point, null);
+    }
+
+    // Starts from point updated with what the journal recovered, and journals every update from then on.
+    public DelegatingVehicleTracker(Map<String,Point> point, VehicleJournal journal) {
+        this(point, journal, null);
+    }
+
+    // Also reports every update of a known vehicle to geofences, which publishes the enter and exit events it causes.
+    public DelegatingVehicleTracker(Map<String,Point> point, VehicleJournal journal, GeofenceEngine geofences) {
         locations = new ConcurrentHashMap<>(point);
         unmodifiableMap = Collections.unmodifiableMap(locations);
+        this.journal = journal;
+        this.geofences = geofences;
+        if (journal != null) {
+            journal.recovered().forEach((id, xy) -> locations.put(id, new Point(xy[0], xy[1])));
+        }
     }
 
     public Map<String,Point> getLocations(){
@@ -25,15 +42,30 @@ public class DelegatingVehicleTracker {
         return locations.get(key);
     }
     public void setLocation(String key,int x,int y){
-        locations.replace(key,new Point(x,y));
+        if (journal == null && geofences == null) {
+            locations.replace(key,new Point(x,y));
+            return;
+        }
+        //The map's lock on the key orders the journal entries and geofence updates of a vehicle like its locations.
+        locations.computeIfPresent(key, (k, old) -> {
+            if (journal != null) {
+                journal.append(k, x, y);
+            }
+            if (geofences != null) {
+                geofences.update(k, x, y);
+            }
+            return new Point(x, y);
+        });
     }
-}
 
-@Immutable
-class Point{
-    private final int x,y;
-    public Point(int x, int y) {
-        this.x = x;
-        this.y = y;
+    @Override
+    public void writeTo(VehicleJournal.Sink sink) throws IOException {
+        for (String id : locations.keySet()) {
+            //Under the key's lock, so an update journaled before the snapshot started is seen installed.
+            Point p = locations.computeIfPresent(id, (k, current) -> current);
+            if (p != null) {
+                sink.write(id, p.getX(), p.getY());
+            }
+        }
     }
 }
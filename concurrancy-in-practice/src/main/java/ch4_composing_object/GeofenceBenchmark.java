@@ -0,0 +1,135 @@
+package ch4_composing_object;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a {@link DelegatingVehicleTracker} with a {@link GeofenceEngine} of 100k fences and reports update throughput
+ * and events delivered, against the cost of one polling tick that tests every vehicle against every fence.
+ *
+ * Fences are 200 to 5000 units wide in a 1M x 1M area, with a few area-wide ones, so a vehicle is in about one fence at
+ * a time and crosses a border every few dozen updates.
+ */
+public class GeofenceBenchmark {
+    private static final int WORLD = 1_000_000;
+    private static final int FENCES = 100_000;
+    private static final int VEHICLES = 10_000;
+    private static final int UPDATES = 4_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int writers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        SplittableRandom random = new SplittableRandom(42);
+        List<GeofenceEngine.Fence> fences = new ArrayList<>();
+        for (int i = 0; i < FENCES - 4; i++) {
+            int w = random.nextInt(200, 5001);
+            int h = random.nextInt(200, 5001);
+            int x = random.nextInt(WORLD - w);
+            int y = random.nextInt(WORLD - h);
+            fences.add(new GeofenceEngine.Fence("fence-" + i, x, y, x + w, y + h));
+        }
+        for (int i = 0; i < 4; i++) {
+            int half = WORLD / 2;
+            fences.add(new GeofenceEngine.Fence("quarter-" + i, (i % 2) * half, (i / 2) * half,
+                    (i % 2) * half + half - 1, (i / 2) * half + half - 1));
+        }
+
+        ExecutorService delivery = Executors.newSingleThreadExecutor();
+        GeofenceEngine engine = new GeofenceEngine(4096, delivery, 1 << 16);
+        long start = System.nanoTime();
+        engine.register(fences);
+        long indexing = System.nanoTime() - start;
+
+        LongAdder enters = new LongAdder();
+        LongAdder exits = new LongAdder();
+        engine.subscribe(new Flow.Subscriber<GeofenceEngine.Event>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(GeofenceEngine.Event event) {
+                (event.getType() == GeofenceEngine.Event.Type.ENTER ? enters : exits).increment();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        int[][] positions = new int[VEHICLES][2];
+        Map<String, Point> initial = new HashMap<>();
+        String[] ids = new String[VEHICLES];
+        for (int v = 0; v < VEHICLES; v++) {
+            ids[v] = "vehicle-" + v;
+            positions[v][0] = random.nextInt(WORLD);
+            positions[v][1] = random.nextInt(WORLD);
+            initial.put(ids[v], new Point(positions[v][0], positions[v][1]));
+        }
+        DelegatingVehicleTracker tracker = new DelegatingVehicleTracker(initial, null, engine);
+
+        //First round warms the JIT up.
+        for (int round = 0; round < 2; round++) {
+            enters.reset();
+            exits.reset();
+            Thread[] threads = new Thread[writers];
+            start = System.nanoTime();
+            for (int w = 0; w < writers; w++) {
+                int partition = w;
+                threads[w] = new Thread(() -> {
+                    SplittableRandom r = new SplittableRandom(partition);
+                    for (int i = 0; i < UPDATES / writers; i++) {
+                        int v = partition + writers * r.nextInt(VEHICLES / writers);
+                        int[] p = positions[v];
+                        p[0] = Math.floorMod(p[0] + r.nextInt(-100, 101), WORLD);
+                        p[1] = Math.floorMod(p[1] + r.nextInt(-100, 101), WORLD);
+                        tracker.setLocation(ids[v], p[0], p[1]);
+                    }
+                });
+                threads[w].start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.printf("indexed %,d fences in %d ms%n", FENCES, indexing / 1_000_000);
+                System.out.printf("%,d updates on %d writers: %.2f M updates/s%n", UPDATES, writers,
+                        UPDATES / (elapsed / 1e3));
+            }
+        }
+        engine.close();
+        delivery.shutdown();
+        delivery.awaitTermination(10, TimeUnit.SECONDS);
+        System.out.printf("%,d enter and %,d exit events delivered, %,d dropped%n", enters.sum(), exits.sum(),
+                engine.getDroppedEvents());
+
+        //Polling: a sample of vehicles against every fence, scaled to the fleet.
+        int sample = 200;
+        int inside = 0;
+        start = System.nanoTime();
+        for (int v = 0; v < sample; v++) {
+            for (GeofenceEngine.Fence f : fences) {
+                if (f.contains(positions[v][0], positions[v][1])) {
+                    inside++;
+                }
+            }
+        }
+        long perVehicle = (System.nanoTime() - start) / sample;
+        System.out.printf("polling tick of %,d vehicles x %,d fences: %d ms (%d hits in sample)%n", VEHICLES, FENCES,
+                perVehicle * VEHICLES / 1_000_000, inside);
+    }
+}
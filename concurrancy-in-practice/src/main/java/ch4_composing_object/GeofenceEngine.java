@@ -0,0 +1,310 @@
+package ch4_composing_object;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * Enter and exit events of vehicles for registered rectangular geofences, computed on every location update instead of
+ * polling all vehicles against all fences.
+ *
+ * Fences are indexed in a uniform grid: every cell lists the fences whose box overlaps it, so an update only tests the
+ * fences of the cell the vehicle is in. Fences that would span more than {@link #MAX_CELLS_PER_FENCE} cells are kept in
+ * a separate list that every update tests, which keeps huge fences from filling the grid. The index is immutable and
+ * replaced as a whole by register and unregister; register fences in batches.
+ *
+ * Each vehicle's set of fences is replaced atomically per vehicle, so concurrent updates of one vehicle cannot both
+ * report the same enter. Events are published asynchronously through a SubmissionPublisher, with per-subscriber buffers;
+ * when a subscriber's buffer is full its events are dropped and counted rather than slowing down the update path.
+ */
+@ThreadSafe
+public class GeofenceEngine implements AutoCloseable {
+    static final int MAX_CELLS_PER_FENCE = 256;
+    private static final Fence[] NONE = new Fence[0];
+
+    @ThreadSafe
+    public static final class Fence {
+        private final String id;
+        private final int minX, minY, maxX, maxY;
+        private long serial; //Set once at registration, before the fence is published in an index.
+        private volatile boolean removed;
+
+        public Fence(String id, int minX, int minY, int maxX, int maxY) {
+            if (minX > maxX || minY > maxY) {
+                throw new IllegalArgumentException("empty fence " + id);
+            }
+            this.id = id;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        boolean contains(int x, int y) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY;
+        }
+    }
+
+    @Immutable
+    public static final class Event {
+        public enum Type {ENTER, EXIT}
+
+        private final Type type;
+        private final String vehicle;
+        private final Fence fence;
+        private final int x, y;
+
+        Event(Type type, String vehicle, Fence fence, int x, int y) {
+            this.type = type;
+            this.vehicle = vehicle;
+            this.fence = fence;
+            this.x = x;
+            this.y = y;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getVehicle() {
+            return vehicle;
+        }
+
+        public String getFence() {
+            return fence.id;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        @Override
+        public String toString() {
+            return vehicle + " " + type + " " + fence.id + " at " + x + "," + y;
+        }
+    }
+
+    private final int cellSize;
+    private final SubmissionPublisher<Event> publisher;
+    private final Map<String, Fence[]> inside = new ConcurrentHashMap<>();
+    private final Counter dropped = MetricsRegistry.global().counter("GeofenceEngine.droppedEvents");
+    private final Object registerLock = new Object();
+    private long nextSerial;
+    private volatile Grid grid;
+
+    /**
+     * @param cellSize grid cell edge, in location units; around the size of a typical fence works well
+     * @param executor delivers events to subscribers
+     */
+    public GeofenceEngine(int cellSize, Executor executor, int bufferCapacity) {
+        this.cellSize = cellSize;
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        this.grid = new Grid(cellSize, Collections.emptyList());
+    }
+
+    public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Registers all fences or, if any of them is already registered or listed twice, none.
+     */
+    public void register(Collection<Fence> fences) {
+        synchronized (registerLock) {
+            Set<Fence> batch = new HashSet<>();
+            for (Fence f : fences) {
+                if (f.serial != 0) {
+                    throw new IllegalArgumentException("fence " + f.id + " is already registered");
+                }
+                if (!batch.add(f)) {
+                    throw new IllegalArgumentException("fence " + f.id + " is listed twice");
+                }
+            }
+            List<Fence> all = new ArrayList<>(grid.fences);
+            for (Fence f : fences) {
+                f.serial = ++nextSerial;
+                all.add(f);
+            }
+            grid = new Grid(cellSize, all);
+        }
+    }
+
+    /**
+     * Removes fences by id. Vehicles inside them get no exit event.
+     */
+    public void unregister(Collection<String> fenceIds) {
+        Set<String> ids = new HashSet<>(fenceIds);
+        synchronized (registerLock) {
+            List<Fence> kept = new ArrayList<>();
+            for (Fence f : grid.fences) {
+                if (ids.contains(f.id)) {
+                    f.removed = true;
+                } else {
+                    kept.add(f);
+                }
+            }
+            grid = new Grid(cellSize, kept);
+        }
+    }
+
+    /**
+     * Called by a tracker when it applies a location, within the critical section that orders the updates of the
+     * vehicle, so the engine sees them in the same order; publishes the enter and exit events it causes. Never blocks.
+     */
+    public void update(String vehicle, int x, int y) {
+        Fence[] now = grid.containing(x, y);
+        inside.compute(vehicle, (v, before) -> {
+            diff(v, before == null ? NONE : before, now, x, y);
+            return now.length == 0 ? null : now;
+        });
+    }
+
+    public long getDroppedEvents() {
+        return dropped.getCount();
+    }
+
+    @Override
+    public void close() {
+        publisher.close();
+    }
+
+    //Both arrays are sorted by serial.
+    private void diff(String vehicle, Fence[] before, Fence[] now, int x, int y) {
+        int i = 0;
+        int j = 0;
+        while (i < before.length || j < now.length) {
+            long b = i < before.length ? before[i].serial : Long.MAX_VALUE;
+            long n = j < now.length ? now[j].serial : Long.MAX_VALUE;
+            if (b == n) {
+                i++;
+                j++;
+            } else if (b < n) {
+                Fence f = before[i++];
+                if (!f.removed) {
+                    publish(new Event(Event.Type.EXIT, vehicle, f, x, y));
+                }
+            } else {
+                publish(new Event(Event.Type.ENTER, vehicle, now[j++], x, y));
+            }
+        }
+    }
+
+    private void publish(Event event) {
+        if (publisher.hasSubscribers()) {
+            publisher.offer(event, (subscriber, e) -> {
+                dropped.inc();
+                return false;
+            });
+        }
+    }
+
+    private static final class Grid {
+        final List<Fence> fences;
+        final Fence[] large;
+        final int cellSize;
+        //Open addressing from cell key to the fences overlapping the cell, sorted by serial.
+        final long[] keys;
+        final Fence[][] cells;
+
+        Grid(int cellSize, List<Fence> fences) {
+            this.cellSize = cellSize;
+            this.fences = Collections.unmodifiableList(fences);
+            Map<Long, List<Fence>> byCell = new HashMap<>();
+            List<Fence> large = new ArrayList<>();
+            for (Fence f : fences) {
+                long x0 = cell(f.minX), x1 = cell(f.maxX), y0 = cell(f.minY), y1 = cell(f.maxY);
+                if ((x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS_PER_FENCE) {
+                    large.add(f);
+                    continue;
+                }
+                for (long cx = x0; cx <= x1; cx++) {
+                    for (long cy = y0; cy <= y1; cy++) {
+                        byCell.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(f);
+                    }
+                }
+            }
+            this.large = large.toArray(NONE);
+            int size = Integer.highestOneBit(Math.max(2, byCell.size() * 2) - 1) << 1;
+            keys = new long[size];
+            cells = new Fence[size][];
+            for (Map.Entry<Long, List<Fence>> e : byCell.entrySet()) {
+                int i = slot(e.getKey());
+                while (cells[i] != null) {
+                    i = (i + 1) & (size - 1);
+                }
+                keys[i] = e.getKey();
+                cells[i] = e.getValue().toArray(NONE);
+            }
+        }
+
+        //Fences containing the point, sorted by serial.
+        Fence[] containing(int x, int y) {
+            long key = key(cell(x), cell(y));
+            Fence[] candidates = NONE;
+            for (int i = slot(key); cells[i] != null; i = (i + 1) & (keys.length - 1)) {
+                if (keys[i] == key) {
+                    candidates = cells[i];
+                    break;
+                }
+            }
+            Fence[] hits = null;
+            int n = 0;
+            for (Fence f : candidates) {
+                if (f.contains(x, y)) {
+                    if (hits == null) {
+                        hits = new Fence[Math.min(candidates.length, 8) + large.length];
+                    } else if (n == hits.length) {
+                        hits = Arrays.copyOf(hits, n * 2);
+                    }
+                    hits[n++] = f;
+                }
+            }
+            for (Fence f : large) {
+                if (f.contains(x, y)) {
+                    if (hits == null) {
+                        hits = new Fence[large.length];
+                    } else if (n == hits.length) {
+                        hits = Arrays.copyOf(hits, n * 2);
+                    }
+                    hits[n++] = f;
+                }
+            }
+            if (hits == null) {
+                return NONE;
+            }
+            hits = Arrays.copyOf(hits, n);
+            if (large.length > 0) {
+                Arrays.sort(hits, Comparator.comparingLong(f -> f.serial));
+            }
+            return hits;
+        }
+
+        private long cell(int v) {
+            return Math.floorDiv(v, cellSize);
+        }
+
+        private static long key(long cx, long cy) {
+            return (cx << 32) ^ (cy & 0xFFFFFFFFL);
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ch4_composing_object;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unique id sequence on top of a {@link Counter} that does not touch the counter's lock for every id.
+ *
+ * Each thread leases a block of ids with a single {@link Counter#reserve} and then hands them out from a thread
+ * confined lease without synchronization. The block size adapts per thread: a block used up faster than
+ * the target interval doubles the next one, and a block that lasted more than eight intervals halves it. So busy threads
+ * rarely go back to the counter, and idle threads do not sit on large ranges.
+ *
+ * Ids are unique and overflow is detected as with Counter.increment. They are only roughly ordered: two threads hand out
+ * from different blocks at the same time, so an id can be smaller than one handed out earlier by another thread, by up to
+ * the largest block size. Ids left in the lease of a thread that dies are never handed out.
+ */
+@ThreadSafe
+public class IdSequence {
+    private final Counter counter;
+    private final int minBlock;
+    private final int maxBlock;
+    private final long targetNanos;
+    private final ThreadLocal<Lease> lease = ThreadLocal.withInitial(Lease::new);
+
+    public IdSequence(Counter counter) {
+        this(counter, 16, 1 << 16, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param minBlock smallest and first block a thread leases
+     * @param maxBlock largest block, which also bounds how far ids can be out of order
+     * @param target how long a block should last a thread
+     */
+    public IdSequence(Counter counter, int minBlock, int maxBlock, long target, TimeUnit unit) {
+        if (minBlock <= 0 || maxBlock < minBlock) {
+            throw new IllegalArgumentException("need 0 < minBlock <= maxBlock");
+        }
+        this.counter = counter;
+        this.minBlock = minBlock;
+        this.maxBlock = maxBlock;
+        this.targetNanos = unit.toNanos(target);
+    }
+
+    public long next() {
+        return lease.get().next();
+    }
+
+    @NotThreadSafe
+    private final class Lease {
+        private long next;
+        private long end;
+        private int blockSize = minBlock;
+        private long leasedAt;
+
+        long next() {
+            if (next == end) {
+                renew();
+            }
+            return next++;
+        }
+
+        private void renew() {
+            long now = System.nanoTime();
+            if (leasedAt != 0) {
+                long lasted = now - leasedAt;
+                if (lasted < targetNanos) {
+                    blockSize = Math.min(maxBlock, blockSize << 1);
+                } else if (lasted > 8 * targetNanos) {
+                    blockSize = Math.max(minBlock, blockSize >>> 1);
+                }
+            }
+            //Throws when the counter is exhausted, leaving this lease empty so later calls throw too.
+            long first = counter.reserve(blockSize);
+            next = first;
+            end = first + Math.min(blockSize, Long.MAX_VALUE - first);
+            leasedAt = now;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ch4_composing_object;
+
+import ch5_building_blocks.TestHarness;
+
+/**
+ * Ids per second from Counter.increment against IdSequence.next on the same number of threads, and how often the
+ * sequence still went to the counter.
+ */
+public class IdSequenceBenchmark {
+
+    private static final int IDS = 10_000_000;
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        TestHarness harness = new TestHarness();
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            Counter direct = new Counter();
+            long locked = harness.timeTask(threads, () -> {
+                long sum = 0;
+                for (int i = 0; i < IDS; i++) {
+                    sum += direct.increment();
+                }
+                sink = sum;
+            });
+
+            CountingCounter leased = new CountingCounter();
+            IdSequence sequence = new IdSequence(leased);
+            long blocks = harness.timeTask(threads, () -> {
+                long sum = 0;
+                for (int i = 0; i < IDS; i++) {
+                    sum += sequence.next();
+                }
+                sink = sum;
+            });
+            if (round == 1) {
+                double ids = (double) IDS * threads;
+                System.out.printf("%d threads: Counter.increment %.1f M ids/s, IdSequence %.1f M ids/s (%d leases, %.0f ids/lease)%n",
+                        threads, ids / locked * 1e3, ids / blocks * 1e3, leased.reservations, ids / leased.reservations);
+            }
+        }
+    }
+
+    private static class CountingCounter extends Counter {
+        private long reservations;
+
+        @Override
+        public synchronized long reserve(long n) {
+            reservations++;
+            return super.reserve(n);
+        }
+    }
+}
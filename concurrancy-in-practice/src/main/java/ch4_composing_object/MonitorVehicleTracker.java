@@ -1,36 +1,86 @@
 package ch4_composing_object;
 
 
+import metrics.ProfiledLock;
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 @ThreadSafe
-public class MonitorVehicleTracker {
+public class MonitorVehicleTracker implements VehicleJournal.Source {
+    private final Lock profiled = ProfiledLock.ifEnabled("MonitorVehicleTracker");
     //This is our state variable and we will take care of this for thread safety.
+    @GuardedBy("this")
     private final Map<String, MutablePoint> locations;
+    private final VehicleJournal journal; // null when locations live in memory only
+    private final GeofenceEngine geofences; // null when nobody watches geofences
 
     //One minor improvement we can do to this class is to use a static initializer
     public MonitorVehicleTracker(Map<String, MutablePoint> locations) {
+        this(locations, null);
+    }
+
+    // Starts from locations updated with what the journal recovered, and journals every update from then on.
+    public MonitorVehicleTracker(Map<String, MutablePoint> locations, VehicleJournal journal) {
+        this(locations, journal, null);
+    }
+
+    // Also reports every update to geofences, which publishes the enter and exit events it causes.
+    public MonitorVehicleTracker(Map<String, MutablePoint> locations, VehicleJournal journal, GeofenceEngine geofences) {
+        Map<String, MutablePoint> initial = new HashMap<>(locations);
+        if (journal != null) {
+            journal.recovered().forEach((id, xy) -> {
+                MutablePoint p = new MutablePoint();
+                p.x = xy[0];
+                p.y = xy[1];
+                initial.put(id, p);
+            });
+        }
         //We will do a deepCopy over here  because we dont want that our location is changed from outside world.
-        this.locations = deepCopy(locations);
+        this.locations = deepCopy(initial);
+        this.journal = journal;
+        this.geofences = geofences;
     }
 
-    public synchronized Map<String, MutablePoint> getLocations(){
+    public Map<String, MutablePoint> getLocations(){
         //We will do a deepcopy over here as well because we dont want that our location is published to out side word with mutability.
-        return deepCopy(locations);
+        return ProfiledLock.withLock(profiled, this, () -> deepCopy(locations));
+    }
+
+    public MutablePoint getLocation(String key){
+        return ProfiledLock.withLock(profiled, this, () -> new MutablePoint(locations.get(key)));
     }
 
-    public synchronized MutablePoint getLocation(String key){
-        return new MutablePoint(locations.get(key));
+    public void setLocations(String key,int x, int y){
+        ProfiledLock.withLock(profiled, this, () -> update(key, x, y));
     }
 
-    public synchronized void setLocations(String key,int x, int y){
+    @GuardedBy("this")
+    private void update(String key, int x, int y) {
         MutablePoint mutablePoint = locations.get(key);
         // we are mutating the mutable MutationPoint Object over here, but it is fine as we are changing it withing the intrinsic Lock.
         mutablePoint.x = x;
         mutablePoint.y = y;
+        if (geofences != null) {
+            //Under the lock, so the engine sees a vehicle's updates in the order they were applied; it never blocks.
+            geofences.update(key, x, y);
+        }
+        if (journal != null) {
+            journal.append(key, x, y);
+        }
+    }
+
+    // Copies under the lock and writes the copy without it, so writers only wait for the copy.
+    @Override
+    public void writeTo(VehicleJournal.Sink sink) throws IOException {
+        for (Map.Entry<String, MutablePoint> e : getLocations().entrySet()) {
+            sink.write(e.getKey(), e.getValue().x, e.getValue().y);
+        }
     }
 
     private Map<String, MutablePoint> deepCopy(Map<String, MutablePoint> locations) {
@@ -42,12 +92,3 @@ public class MonitorVehicleTracker {
         return Collections.unmodifiableMap(result); // You can not add anything in the location.
     }
 }
-class MutablePoint {
-public int x,y;
-    public MutablePoint() {
-    }
-    public MutablePoint(MutablePoint point) {
-        this.x = point.x;
-        this.y = point.y;
-    }
-}
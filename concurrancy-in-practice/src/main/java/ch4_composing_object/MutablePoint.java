@@ -0,0 +1,11 @@
+package ch4_composing_object;
+
+class MutablePoint {
+public int x,y;
+    public MutablePoint() {
+    }
+    public MutablePoint(MutablePoint point) {
+        this.x = point.x;
+        this.y = point.y;
+    }
+}
@@ -0,0 +1,21 @@
+package ch4_composing_object;
+
+import net.jcip.annotations.Immutable;
+
+@Immutable
+class Point{
+    private final int x,y;
+    public Point(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+}
+
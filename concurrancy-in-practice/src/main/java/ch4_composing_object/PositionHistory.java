@@ -0,0 +1,228 @@
+package ch4_composing_object;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent positions of every vehicle, for track replay and speed estimation, where the trackers only keep the latest.
+ *
+ * Each vehicle has a fixed size ring of blocks. A block starts with a full (time, x, y) and continues with zigzag varint
+ * deltas to the previous position, so a position typically takes 3 to 6 bytes and any block can be decoded on its own.
+ * When the ring is full, the oldest block is reused and its positions are dropped.
+ *
+ * Positions of one vehicle must come from one thread at a time, e.g. the consumer of the feed partition the vehicle is
+ * in; that thread appends without locking. Readers never block it either: they copy the blocks they need and check that
+ * the writer did not start reusing any of them meanwhile, like a StampedLock optimistic read. Overwritten blocks are left
+ * out, they were about to be dropped anyway.
+ */
+@ThreadSafe
+public class PositionHistory {
+
+    public interface Visitor {
+        void accept(long timeMillis, int x, int y);
+    }
+
+    private final Map<String, Track> tracks = new ConcurrentHashMap<>();
+    private final int blocks;
+    private final int blockSize;
+
+    public PositionHistory() {
+        this(16, 512);
+    }
+
+    /**
+     * @param blocks blocks per vehicle, at least two: the one being written and the older ones
+     * @param blockSize bytes per block; blocks * blockSize is the memory per vehicle, about that divided by 4 positions
+     */
+    public PositionHistory(int blocks, int blockSize) {
+        if (blocks < 2 || blockSize < 3 * 10) {
+            throw new IllegalArgumentException("need at least 2 blocks of 30 bytes");
+        }
+        this.blocks = blocks;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Appends a position. Only one thread at a time may record positions of a given vehicle, and its times must not
+     * go backwards.
+     */
+    public void record(String vehicle, long timeMillis, int x, int y) {
+        Track track = tracks.get(vehicle);
+        if (track == null) {
+            track = tracks.computeIfAbsent(vehicle, v -> new Track(blocks, blockSize));
+        }
+        track.append(timeMillis, x, y);
+    }
+
+    /**
+     * Visits, oldest first, the kept positions of vehicle with from <= time <= to. Returns the number visited.
+     */
+    public int scan(String vehicle, long from, long to, Visitor visitor) {
+        Track track = tracks.get(vehicle);
+        return track == null ? 0 : track.scan(from, to, visitor);
+    }
+
+    public int vehicles() {
+        return tracks.size();
+    }
+
+    private static final class Track {
+        private final byte[] data;
+        private final int blockSize;
+        private final int blocks;
+        //Time of the first position of each block slot, to skip blocks before a scan window without decoding them.
+        private final long[] startTimes;
+        //End of the data of each block slot, valid once the block is full.
+        private final int[] ends;
+        //(block sequence << 32) | bytes used in that block. Block s lives in slot s % blocks.
+        private volatile long head = -1L << 32;
+
+        //Writer only.
+        private long lastTime;
+        private int lastX;
+        private int lastY;
+
+        Track(int blocks, int blockSize) {
+            this.blocks = blocks;
+            this.blockSize = blockSize;
+            this.data = new byte[blocks * blockSize];
+            this.startTimes = new long[blocks];
+            this.ends = new int[blocks];
+        }
+
+        void append(long time, int x, int y) {
+            long h = head;
+            long block = h >> 32;
+            int used = (int) h;
+            //Worst case for a delta record: three 10 byte varints.
+            if (block < 0 || used + 30 > blockSize) {
+                startBlock(block + 1, time, x, y);
+                return;
+            }
+            int at = slot(block) * blockSize + used;
+            at = putVarLong(at, zigzag(time - lastTime));
+            at = putVarLong(at, zigzag((long) x - lastX));
+            at = putVarLong(at, zigzag((long) y - lastY));
+            remember(time, x, y);
+            head = (block << 32) | (at - slot(block) * blockSize);
+        }
+
+        private void startBlock(long block, long time, int x, int y) {
+            if (block > 0) {
+                ends[slot(block - 1)] = (int) head;
+            }
+            int slot = slot(block);
+            //Before the announcement, which publishes it: a scan that sees the new block skips by its start time. One
+            //that does not only looks at the start times of the blocks after the oldest it keeps, never at this slot.
+            startTimes[slot] = time;
+            //Announce the block before reusing its data, so a reader that copied the old contents notices.
+            head = block << 32;
+            VarHandle.storeStoreFence();
+            int at = slot * blockSize;
+            at = putVarLong(at, zigzag(time));
+            at = putVarLong(at, zigzag(x));
+            at = putVarLong(at, zigzag(y));
+            remember(time, x, y);
+            head = (block << 32) | (at - slot * blockSize);
+        }
+
+        int scan(long from, long to, Visitor visitor) {
+            long h = head;
+            long newest = h >> 32;
+            if (newest < 0) {
+                return 0;
+            }
+            long oldest = Math.max(0, newest - blocks + 1);
+            //Skip whole blocks that end before the window: the next block starts before from. A block whose successor
+            //starts exactly at from may still end with a position at from, with equal timestamps.
+            while (oldest < newest && startTimes[slot(oldest + 1)] < from) {
+                oldest++;
+            }
+            int count = (int) (newest - oldest + 1);
+            byte[] copy = new byte[count * blockSize];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                long block = oldest + i;
+                lengths[i] = block == newest ? (int) h : ends[slot(block)];
+                System.arraycopy(data, slot(block) * blockSize, copy, i * blockSize, lengths[i]);
+            }
+            VarHandle.acquireFence();
+            //Block b was being reused if block b + blocks has been started since.
+            long started = head >> 32;
+            int first = (int) Math.max(0, started - blocks + 1 - oldest);
+            int visited = 0;
+            for (int i = first; i < count; i++) {
+                visited += decode(copy, i * blockSize, lengths[i], from, to, visitor);
+            }
+            return visited;
+        }
+
+        private static int decode(byte[] buf, int start, int length, long from, long to, Visitor visitor) {
+            if (length == 0) {
+                return 0; //Copied while the writer was starting it.
+            }
+            int[] at = {start};
+            int end = start + length;
+            long time = unzigzag(getVarLong(buf, at));
+            int x = (int) unzigzag(getVarLong(buf, at));
+            int y = (int) unzigzag(getVarLong(buf, at));
+            int visited = 0;
+            while (true) {
+                if (time > to) {
+                    return visited;
+                }
+                if (time >= from) {
+                    visitor.accept(time, x, y);
+                    visited++;
+                }
+                if (at[0] >= end) {
+                    return visited;
+                }
+                time += unzigzag(getVarLong(buf, at));
+                x += (int) unzigzag(getVarLong(buf, at));
+                y += (int) unzigzag(getVarLong(buf, at));
+            }
+        }
+
+        private void remember(long time, int x, int y) {
+            lastTime = time;
+            lastX = x;
+            lastY = y;
+        }
+
+        private int slot(long block) {
+            return (int) (block % blocks);
+        }
+
+        private int putVarLong(int at, long v) {
+            while ((v & ~0x7FL) != 0) {
+                data[at++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[at++] = (byte) v;
+            return at;
+        }
+
+        private static long getVarLong(byte[] buf, int[] at) {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[at[0]++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        private static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        private static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ch4_composing_object;
+
+import java.util.SplittableRandom;
+
+/**
+ * Fills a {@link PositionHistory} for a fleet, one writer thread per partition of the vehicles, and reports append
+ * throughput, heap per vehicle and per kept position, and the time of a one minute window scan.
+ *
+ * Vehicles report every second and move a few meters per report, as a GPS feed does. The default of 100k vehicles
+ * needs about 1GB of heap: run with -Xmx2g, or pass a smaller fleet.
+ */
+public class PositionHistoryBenchmark {
+
+    private static final int REPORTS = 2_000;
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int writers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        String[] ids = new String[vehicles];
+        for (int i = 0; i < vehicles; i++) {
+            ids[i] = "vehicle-" + i;
+        }
+
+        long base = usedHeap();
+        PositionHistory history = new PositionHistory();
+        Thread[] threads = new Thread[writers];
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+            int partition = w;
+            threads[w] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(partition);
+                int[] x = new int[vehicles];
+                int[] y = new int[vehicles];
+                //Report round by round, so every vehicle's history grows at the same pace as in a live feed.
+                for (int r = 0; r < REPORTS; r++) {
+                    long time = 1_700_000_000_000L + r * 1000L;
+                    for (int v = partition; v < vehicles; v += writers) {
+                        x[v] += random.nextInt(-20, 21);
+                        y[v] += random.nextInt(-20, 21);
+                        history.record(ids[v], time + random.nextInt(50), x[v], y[v]);
+                    }
+                }
+            });
+            threads[w].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = usedHeap() - base;
+
+        int[] kept = {0};
+        long scanStart = System.nanoTime();
+        for (String id : ids) {
+            kept[0] += history.scan(id, Long.MIN_VALUE, Long.MAX_VALUE, (t, px, py) -> sink += px);
+        }
+        long fullScan = System.nanoTime() - scanStart;
+        long lastMinute = 1_700_000_000_000L + (REPORTS - 60) * 1000L;
+        scanStart = System.nanoTime();
+        long windowed = 0;
+        for (String id : ids) {
+            windowed += history.scan(id, lastMinute, Long.MAX_VALUE, (t, px, py) -> sink += py);
+        }
+        long windowScan = System.nanoTime() - scanStart;
+
+        System.out.printf("%,d vehicles x %,d reports on %d writers: %.1f M appends/s%n", vehicles, REPORTS, writers,
+                (double) vehicles * REPORTS / (elapsed / 1e3));
+        System.out.printf("heap %.0f bytes/vehicle, %,d positions kept (%.0f per vehicle), %.1f bytes/position%n",
+                (double) bytes / vehicles, kept[0], (double) kept[0] / vehicles, (double) bytes / kept[0]);
+        System.out.printf("scan all kept %.1f us/vehicle, last minute %.2f us/vehicle (%d positions)%n",
+                fullScan / 1e3 / vehicles, windowScan / 1e3 / vehicles, windowed);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
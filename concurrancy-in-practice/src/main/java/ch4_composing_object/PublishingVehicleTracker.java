@@ -2,17 +2,37 @@ package ch4_composing_object;
 
 import net.jcip.annotations.Immutable;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class PublishingVehicleTracker {
+public class PublishingVehicleTracker implements VehicleJournal.Source {
     private final Map<String,SafePoint> locations;
     private final Map<String, SafePoint> unmodifiableMap;
+    private final VehicleJournal journal; // null when locations live in memory only
+    private final GeofenceEngine geofences; // null when nobody watches geofences
 
     public PublishingVehicleTracker(Map<String,SafePoint> point) {
+        this(point, null);
+    }
+
+    // Starts from point updated with what the journal recovered, and journals every setLocation from then on.
+    // Clients that call set on a published SafePoint directly bypass the journal.
+    public PublishingVehicleTracker(Map<String,SafePoint> point, VehicleJournal journal) {
+        this(point, journal, null);
+    }
+
+    // Also reports every setLocation of a known vehicle to geofences, which publishes the enter and exit events it
+    // causes. Like the journal, it does not see clients calling set on a published SafePoint.
+    public PublishingVehicleTracker(Map<String,SafePoint> point, VehicleJournal journal, GeofenceEngine geofences) {
         locations = new ConcurrentHashMap<>(point);
         unmodifiableMap = Collections.unmodifiableMap(locations);
+        this.journal = journal;
+        this.geofences = geofences;
+        if (journal != null) {
+            journal.recovered().forEach((id, xy) -> locations.put(id, new SafePoint(xy[0], xy[1])));
+        }
     }
 
     public Map<String,SafePoint> getLocations(){
@@ -23,8 +43,30 @@ public class PublishingVehicleTracker {
         return unmodifiableMap.get(key);
     }
     public void setLocation(String key,int x,int y){
-        if(locations.containsKey(key)){
-            locations.get(key).set(x,y);
+        if (journal == null && geofences == null) {
+            if(locations.containsKey(key)){
+                locations.get(key).set(x,y);
+            }
+            return;
+        }
+        //The map's lock on the key orders the journal entries and geofence updates of a vehicle like its locations.
+        locations.computeIfPresent(key, (k, p) -> {
+            p.set(x, y);
+            if (journal != null) {
+                journal.append(k, x, y);
+            }
+            if (geofences != null) {
+                geofences.update(k, x, y);
+            }
+            return p;
+        });
+    }
+
+    @Override
+    public void writeTo(VehicleJournal.Sink sink) throws IOException {
+        for (Map.Entry<String, SafePoint> e : locations.entrySet()) {
+            int[] xy = e.getValue().get();
+            sink.write(e.getKey(), xy[0], xy[1]);
         }
     }
 
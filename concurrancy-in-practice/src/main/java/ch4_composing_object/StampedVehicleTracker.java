@@ -0,0 +1,131 @@
+package ch4_composing_object;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * MonitorVehicleTracker for read-mostly use: the same mutable points and deep copies, but guarded by one StampedLock per
+ * shard of vehicles instead of one monitor for all of them.
+ *
+ * The set of vehicles is fixed at construction, so only the points change. getLocation copies a point under an
+ * optimistic read, which writes nothing shared, and validates the stamp afterwards; if a writer got in between, it copies
+ * again under the read lock. Readers therefore run in parallel with each other and with writers of other shards.
+ * setLocations takes the write lock of its vehicle's shard only. getLocations takes every shard's read lock, in order,
+ * so its copy is as consistent as the monitor version's.
+ */
+@ThreadSafe
+public class StampedVehicleTracker implements VehicleJournal.Source {
+    private final StampedLock[] locks;
+    //Never modified after construction; the points in it are guarded by the lock of their shard.
+    @GuardedBy("locks")
+    private final Map<String, MutablePoint> locations;
+    private final VehicleJournal journal; // null when locations live in memory only
+    private final GeofenceEngine geofences; // null when nobody watches geofences
+
+    public StampedVehicleTracker(Map<String, MutablePoint> locations) {
+        this(locations, null, null);
+    }
+
+    // Same as MonitorVehicleTracker(locations, journal, geofences).
+    public StampedVehicleTracker(Map<String, MutablePoint> locations, VehicleJournal journal, GeofenceEngine geofences) {
+        Map<String, MutablePoint> initial = new HashMap<>();
+        locations.forEach((id, p) -> initial.put(id, new MutablePoint(p)));
+        if (journal != null) {
+            journal.recovered().forEach((id, xy) -> {
+                MutablePoint p = new MutablePoint();
+                p.x = xy[0];
+                p.y = xy[1];
+                initial.put(id, p);
+            });
+        }
+        this.locations = initial;
+        this.journal = journal;
+        this.geofences = geofences;
+        int shards = Integer.highestOneBit(Math.max(1, 4 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        locks = new StampedLock[shards];
+        for (int i = 0; i < shards; i++) {
+            locks[i] = new StampedLock();
+        }
+    }
+
+    public Map<String, MutablePoint> getLocations() {
+        long[] stamps = new long[locks.length];
+        for (int i = 0; i < locks.length; i++) {
+            stamps[i] = locks[i].readLock();
+        }
+        try {
+            Map<String, MutablePoint> result = new HashMap<>();
+            for (Map.Entry<String, MutablePoint> entry : locations.entrySet()) {
+                result.put(entry.getKey(), new MutablePoint(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(result);
+        } finally {
+            for (int i = 0; i < locks.length; i++) {
+                locks[i].unlockRead(stamps[i]);
+            }
+        }
+    }
+
+    public MutablePoint getLocation(String key) {
+        MutablePoint point = locations.get(key);
+        if (point == null) {
+            return null;
+        }
+        StampedLock lock = lockOf(key);
+        long stamp = lock.tryOptimisticRead();
+        MutablePoint copy = new MutablePoint(point);
+        if (lock.validate(stamp)) {
+            return copy;
+        }
+        stamp = lock.readLock();
+        try {
+            return new MutablePoint(point);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void setLocations(String key, int x, int y) {
+        MutablePoint point = locations.get(key);
+        if (point == null) {
+            throw new IllegalArgumentException("No such vehicle: " + key);
+        }
+        StampedLock lock = lockOf(key);
+        long stamp = lock.writeLock();
+        try {
+            update(key, point, x, y);
+            if (journal != null) {
+                journal.append(key, x, y);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @GuardedBy("locks")
+    private void update(String key, MutablePoint point, int x, int y) {
+        point.x = x;
+        point.y = y;
+        if (geofences != null) {
+            geofences.update(key, x, y);
+        }
+    }
+
+    @Override
+    public void writeTo(VehicleJournal.Sink sink) throws IOException {
+        for (Map.Entry<String, MutablePoint> e : getLocations().entrySet()) {
+            sink.write(e.getKey(), e.getValue().x, e.getValue().y);
+        }
+    }
+
+    private StampedLock lockOf(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+    }
+}
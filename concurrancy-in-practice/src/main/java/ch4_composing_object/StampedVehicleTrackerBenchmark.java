@@ -0,0 +1,83 @@
+package ch4_composing_object;
+
+import ch5_building_blocks.TestHarness;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Operations per second of MonitorVehicleTracker against StampedVehicleTracker at several read:write ratios, every
+ * thread mixing getLocation and setLocations on random vehicles of the same fleet.
+ */
+public class StampedVehicleTrackerBenchmark {
+
+    private static final int VEHICLES = 10_000;
+    private static final int OPS = 2_000_000;
+    private static final int[] READS_PER_WRITE = {1, 10, 50, 200};
+    private static volatile long sink;
+
+    interface Tracker {
+        MutablePoint get(String id);
+
+        void set(String id, int x, int y);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        String[] ids = new String[VEHICLES];
+        Map<String, MutablePoint> fleet = new HashMap<>();
+        for (int i = 0; i < VEHICLES; i++) {
+            ids[i] = "vehicle-" + i;
+            fleet.put(ids[i], new MutablePoint());
+        }
+        TestHarness harness = new TestHarness();
+
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            for (int ratio : READS_PER_WRITE) {
+                MonitorVehicleTracker monitor = new MonitorVehicleTracker(fleet);
+                StampedVehicleTracker stamped = new StampedVehicleTracker(fleet);
+                long monitorTime = run(harness, threads, ratio, ids, new Tracker() {
+                    public MutablePoint get(String id) {
+                        return monitor.getLocation(id);
+                    }
+
+                    public void set(String id, int x, int y) {
+                        monitor.setLocations(id, x, y);
+                    }
+                });
+                long stampedTime = run(harness, threads, ratio, ids, new Tracker() {
+                    public MutablePoint get(String id) {
+                        return stamped.getLocation(id);
+                    }
+
+                    public void set(String id, int x, int y) {
+                        stamped.setLocations(id, x, y);
+                    }
+                });
+                if (round == 1) {
+                    double ops = (double) OPS * threads;
+                    System.out.printf("%d threads, %3d:1 reads:writes: monitor %.1f M ops/s, stamped %.1f M ops/s%n",
+                            threads, ratio, ops / monitorTime * 1e3, ops / stampedTime * 1e3);
+                }
+            }
+        }
+    }
+
+    private static long run(TestHarness harness, int threads, int ratio, String[] ids, Tracker tracker)
+            throws InterruptedException {
+        return harness.timeTask(threads, () -> {
+            SplittableRandom random = new SplittableRandom();
+            long sum = 0;
+            for (int i = 0; i < OPS; i++) {
+                String id = ids[random.nextInt(ids.length)];
+                if (i % (ratio + 1) == 0) {
+                    tracker.set(id, i, -i);
+                } else {
+                    sum += tracker.get(id).x;
+                }
+            }
+            sink = sum;
+        });
+    }
+}
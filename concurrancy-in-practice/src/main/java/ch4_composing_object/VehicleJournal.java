@@ -0,0 +1,475 @@
+package ch4_composing_object;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durability for the vehicle trackers: a write-ahead journal of location updates plus periodic snapshots, so a restart
+ * loads the last snapshot and replays only the journal written since.
+ *
+ * Updates are encoded into in-memory batches, one per stripe of vehicle ids, each under its own stripe lock, so
+ * updates of different vehicles rarely wait for each other. The lock covers the encoding only. The tracker applies the
+ * update itself and calls {@link #append} within the critical section that applies it, the one that orders the updates
+ * of that vehicle: its own lock, or the map's lock on that key. So the journal has the updates of a vehicle in the order
+ * the tracker applied them. A flusher thread writes the sealed batches every flush interval (or sooner when a batch gets
+ * large) with one write and one force, so the cost of the disk is shared by every update of the batch. Appends do not
+ * wait for the disk; what was appended in the last flush interval before a crash is lost, call {@link #sync} where that
+ * matters.
+ *
+ * The journal is split in segments, journal-N. A snapshot starts a new segment N under every stripe lock, which takes
+ * a moment, and then reads the tracker's state through its {@link Source} while writers carry on. Every update of an
+ * earlier segment was journaled before that, inside its critical section, so a Source that reads each vehicle under
+ * the same lock sees it applied. Updates of segment N and later may or may not be in the snapshot, and are replayed on recovery. Replaying an
+ * update again only sets the same location again. Once snapshot-N is durable, the older segments and snapshots are
+ * deleted.
+ */
+@ThreadSafe
+public class VehicleJournal implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x56534e50; // "VSNP"
+    private static final int BATCH_HEADER = 2 * Integer.BYTES;
+    private static final int FLUSH_NOW_BYTES = 256 * 1024;
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    /**
+     * How a tracker hands its current state to a snapshot: call sink.write once per vehicle.
+     */
+    public interface Source {
+        void writeTo(Sink sink) throws IOException;
+    }
+
+    public interface Sink {
+        void write(String id, int x, int y) throws IOException;
+    }
+
+    private final Path dir;
+    private final Map<String, int[]> recovered;
+    private final ScheduledExecutorService background = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "vehicle-journal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Stripe[] stripes;
+    //Written holding every stripe lock, so holding any one of them is enough to read them.
+    @GuardedBy("stripes") private volatile long batchSegment;
+    @GuardedBy("stripes") private boolean closed;
+    //Sealed batches in sealing order, which is append order for every stripe.
+    private final Queue<Sealed> sealed = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    //Flusher state, touched only by whoever holds ioLock.
+    private final Object ioLock = new Object();
+    @GuardedBy("ioLock") private FileChannel journal;
+    @GuardedBy("ioLock") private long journalSegment = -1;
+
+    /**
+     * Opens the journal in dir and recovers the state it holds; see {@link #recovered()}. Nothing is written until
+     * {@link #start}.
+     */
+    public VehicleJournal(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        long snapshot = latestSnapshot();
+        Map<String, int[]> state = new HashMap<>();
+        if (snapshot >= 0) {
+            loadSnapshot(snapshotFile(snapshot), state);
+        }
+        long last = snapshot;
+        for (long segment : segments("journal-")) {
+            if (segment >= snapshot) {
+                replay(journalFile(segment), state);
+                last = Math.max(last, segment);
+            }
+        }
+        this.recovered = Collections.unmodifiableMap(state);
+        //Never append to a segment that was there at startup, its tail may be torn.
+        this.batchSegment = last + 1;
+        int n = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Vehicle locations as of the last durable update before the journal was opened, as {x, y} pairs.
+     */
+    public Map<String, int[]> recovered() {
+        return recovered;
+    }
+
+    /**
+     * Starts the flusher and the periodic snapshots of source.
+     */
+    public void start(Source source, long flushInterval, long snapshotInterval, TimeUnit unit) {
+        background.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(source);
+            } catch (IOException e) {
+                //The journal still has everything, the next snapshot tries again.
+                e.printStackTrace();
+            }
+        }, snapshotInterval, snapshotInterval, unit);
+    }
+
+    /**
+     * Journals an update. Call it within the critical section that applies the update, so the journal gets the updates
+     * of a vehicle in the order they were applied.
+     */
+    public void append(String id, int x, int y) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (key.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("vehicle id too long");
+        }
+        int size = Short.BYTES + key.length + 2 * Integer.BYTES;
+        Stripe stripe = stripeOf(id);
+        boolean flushNow;
+        stripe.lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("journal closed");
+            }
+            ByteBuffer batch = stripe.batch;
+            if (batch.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + size));
+                batch = stripe.batch = bigger.put(batch.flip());
+            }
+            batch.putShort((short) key.length).put(key).putInt(x).putInt(y);
+            flushNow = batch.position() >= FLUSH_NOW_BYTES / stripes.length && !flushRequested.get()
+                    && flushRequested.compareAndSet(false, true);
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (flushNow) {
+            try {
+                background.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                //Closing, close() flushes.
+            }
+        }
+    }
+
+    /**
+     * Writes and forces everything appended so far.
+     */
+    public void sync() throws IOException {
+        flush();
+    }
+
+    /**
+     * Writes a snapshot of source now, and deletes the journal segments and snapshots it replaces. One snapshot at a
+     * time.
+     */
+    public synchronized void snapshot(Source source) throws IOException {
+        long segment;
+        lockAll();
+        try {
+            for (Stripe stripe : stripes) {
+                seal(stripe);
+            }
+            //Appends from here on go to the new segment, which the snapshot names.
+            segment = ++batchSegment;
+        } finally {
+            unlockAll();
+        }
+        //Earlier segments must be durable before they are deleted; flushing also closes the old segment file.
+        flush();
+        Path tmp = dir.resolve("snapshot.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            CRC32 crc = new CRC32();
+            int[] count = {0};
+            buffer.putInt(SNAPSHOT_MAGIC).putLong(segment).putInt(0); // count, patched below
+            source.writeTo((id, x, y) -> {
+                byte[] key = id.getBytes(StandardCharsets.UTF_8);
+                if (key.length > Short.MAX_VALUE) {
+                    //append never journals such an id either; it can only come from the tracker's initial map.
+                    throw new IOException("vehicle id too long for a snapshot: " + key.length + " bytes");
+                }
+                if (buffer.remaining() < Short.BYTES + key.length + 2 * Integer.BYTES) {
+                    drain(out, buffer, crc);
+                }
+                buffer.putShort((short) key.length).put(key).putInt(x).putInt(y);
+                count[0]++;
+            });
+            drain(out, buffer, crc);
+            //Header and crc trailer: the crc covers the records only.
+            out.write(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).flip());
+            out.write(ByteBuffer.allocate(Integer.BYTES).putInt(count[0]).flip(), Integer.BYTES + Long.BYTES);
+            out.force(true);
+        }
+        try {
+            Files.move(tmp, snapshotFile(segment), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, snapshotFile(segment), StandardCopyOption.REPLACE_EXISTING);
+        }
+        //The rename must be durable before the files it replaces are gone, or a crash could leave neither.
+        forceDirectory();
+        for (long old : segments("journal-")) {
+            if (old < segment) {
+                Files.deleteIfExists(journalFile(old));
+            }
+        }
+        for (long old : segments("snapshot-")) {
+            if (old < segment) {
+                Files.deleteIfExists(snapshotFile(old));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lockAll();
+        try {
+            closed = true;
+        } finally {
+            unlockAll();
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (ioLock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    //Called holding the stripe's lock.
+    private void seal(Stripe stripe) {
+        if (stripe.batch.position() > 0) {
+            sealed.add(new Sealed(batchSegment, stripe.batch.flip()));
+            stripe.batch = newBatch();
+        }
+    }
+
+    //Always in index order, so two threads locking all stripes cannot deadlock.
+    private void lockAll() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].lock.unlock();
+        }
+    }
+
+    private Stripe stripeOf(String id) {
+        int h = id.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    private void flush() throws IOException {
+        synchronized (ioLock) {
+            flushRequested.set(false);
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    seal(stripe);
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            List<Sealed> toWrite = new ArrayList<>();
+            for (Sealed s; (s = sealed.poll()) != null; ) {
+                toWrite.add(s);
+            }
+            for (Sealed s : toWrite) {
+                if (s.segment != journalSegment) {
+                    openSegment(s.segment);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(s.records.duplicate());
+                ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER).putInt(s.records.remaining()).putInt((int) crc.getValue()).flip();
+                ByteBuffer[] both = {header, s.records};
+                while (header.hasRemaining() || s.records.hasRemaining()) {
+                    journal.write(both);
+                }
+            }
+            if (journal != null && !toWrite.isEmpty()) {
+                journal.force(false);
+            }
+            //A snapshot moved on to a new segment: the old file is complete.
+            if (journal != null && journalSegment < batchSegment) {
+                journal.close();
+                journal = null;
+                journalSegment = -1;
+            }
+        }
+    }
+
+    //Scheduled flushes must not throw, that would cancel the schedule.
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @GuardedBy("ioLock")
+    private void openSegment(long segment) throws IOException {
+        if (journal != null) {
+            journal.force(false);
+            journal.close();
+        }
+        journal = FileChannel.open(journalFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        journalSegment = segment;
+        //Forcing the segment's records is of no use if its directory entry is lost.
+        forceDirectory();
+    }
+
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            //Windows can not open a directory; NTFS journals its entries itself.
+            if (!WINDOWS) {
+                throw e;
+            }
+        }
+    }
+
+    private static void drain(FileChannel out, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        ByteBuffer records = buffer.duplicate();
+        if (out.position() == 0) {
+            records.position(Integer.BYTES + Long.BYTES + Integer.BYTES); //Header is not part of the crc.
+        }
+        crc.update(records);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    //Memory maps the snapshot and decodes it straight from the mapping.
+    private static void loadSnapshot(Path file, Map<String, int[]> state) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            map.order(ByteOrder.BIG_ENDIAN);
+            if (map.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            map.getLong();
+            int count = map.getInt();
+            int recordsStart = map.position();
+            ByteBuffer records = map.slice(recordsStart, map.limit() - recordsStart - Integer.BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(records.duplicate());
+            if ((int) crc.getValue() != map.getInt(map.limit() - Integer.BYTES)) {
+                throw new IOException(file + " fails its checksum");
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[records.getShort()];
+                records.get(key);
+                state.put(new String(key, StandardCharsets.UTF_8), new int[]{records.getInt(), records.getInt()});
+            }
+        }
+    }
+
+    //Applies the batches of a segment in order, up to the end or the first torn or corrupt batch.
+    private static void replay(Path file, Map<String, int[]> state) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (data.remaining() >= BATCH_HEADER) {
+            int length = data.getInt();
+            int expected = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer records = data.slice(data.position(), length);
+            CRC32 crc = new CRC32();
+            crc.update(records.duplicate());
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            while (records.hasRemaining()) {
+                byte[] key = new byte[records.getShort()];
+                records.get(key);
+                state.put(new String(key, StandardCharsets.UTF_8), new int[]{records.getInt(), records.getInt()});
+            }
+            data.position(data.position() + length);
+        }
+    }
+
+    //Newest snapshot, -1 if none.
+    private long latestSnapshot() throws IOException {
+        List<Long> snapshots = segments("snapshot-");
+        return snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+    }
+
+    private List<Long> segments(String prefix) throws IOException {
+        List<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                try {
+                    result.add(Long.parseLong(name.substring(prefix.length(), name.lastIndexOf('.'))));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    //Not ours.
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private Path journalFile(long segment) {
+        return dir.resolve("journal-" + segment + ".log");
+    }
+
+    private Path snapshotFile(long segment) {
+        return dir.resolve("snapshot-" + segment + ".bin");
+    }
+
+    private static ByteBuffer newBatch() {
+        return ByteBuffer.allocate(16 * 1024);
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        @GuardedBy("lock") ByteBuffer batch = newBatch();
+    }
+
+    private static final class Sealed {
+        final long segment;
+        final ByteBuffer records;
+
+        Sealed(long segment, ByteBuffer records) {
+            this.segment = segment;
+            this.records = records;
+        }
+    }
+}
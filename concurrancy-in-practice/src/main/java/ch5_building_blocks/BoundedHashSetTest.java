@@ -1,5 +1,9 @@
 package ch5_building_blocks;
 
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.Timer;
+
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -21,6 +25,8 @@ class BoundedHashSet<T> {
 
     private final Set<T> set;
     private final Semaphore semaphore;
+    private final Counter permitWaits = MetricsRegistry.global().counter("BoundedHashSet.permitWaits");
+    private final Timer permitWaitTime = MetricsRegistry.global().timer("BoundedHashSet.permitWaitTime");
 
     public BoundedHashSet(int bound) {
         this.set = Collections.synchronizedSet(new HashSet<>());
@@ -29,7 +35,13 @@ class BoundedHashSet<T> {
 
     public boolean add (T element) throws InterruptedException {
         System.out.println("Before acquire with element "+ element);
-        semaphore.acquire();
+        if (!semaphore.tryAcquire()) {
+            // Set is full, only the adds that really block are counted and timed.
+            permitWaits.inc();
+            long start = Timer.start();
+            semaphore.acquire();
+            permitWaitTime.stop(start);
+        }
         System.out.println("After acquire with element "+ element);
         boolean added = false;
         try {
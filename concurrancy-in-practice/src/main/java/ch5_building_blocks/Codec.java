@@ -0,0 +1,71 @@
+package ch5_building_blocks;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns keys and values into bytes for {@link SpillStore}. decode gets a buffer positioned over exactly the encoded
+ * bytes; it may be a view of a memory mapped file, so it must not be kept after decode returns.
+ */
+public interface Codec<T> {
+
+    byte[] encode(T value);
+
+    T decode(ByteBuffer bytes);
+
+    Codec<String> STRING = new Codec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+    };
+
+    Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(ByteBuffer bytes) {
+            return bytes.getLong();
+        }
+    };
+
+    /**
+     * Java serialization, for values that have no compact codec of their own.
+     */
+    static <T extends Serializable> Codec<T> serializable(Class<T> type) {
+        return new Codec<T>() {
+            @Override
+            public byte[] encode(T value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            public T decode(ByteBuffer bytes) {
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.get(copy);
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(copy))) {
+                    return type.cast(in.readObject());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,6 @@
+package ch5_building_blocks;
+
+interface Computable<A,V>{
+
+    V compute (A arg) throws InterruptedException;
+}
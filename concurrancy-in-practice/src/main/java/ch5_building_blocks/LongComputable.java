@@ -0,0 +1,10 @@
+package ch5_building_blocks;
+
+/**
+ * {@link Computable} for primitive long arguments, so callers never box the key.
+ */
+@FunctionalInterface
+public interface LongComputable<V> {
+
+    V compute(long arg) throws InterruptedException;
+}
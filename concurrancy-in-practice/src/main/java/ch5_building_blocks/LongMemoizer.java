@@ -0,0 +1,264 @@
+package ch5_building_blocks;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * {@link Memoizer} for long keys, backed by open addressing tables of primitive keys instead of a map of boxed keys
+ * to FutureTasks.
+ *
+ * The key space is split into segments. Each segment keeps a long[] of keys and an Object[] of slots side by side,
+ * with linear probing. A slot holds the value once it is computed, a {@code Pending} task while one thread computes
+ * it, or {@code RETRY} after a failed computation. A hit is a probe of the current segment table with acquire reads
+ * and allocates nothing. Misses, resizes and completions take the segment lock. So, as with Memoizer, a value is
+ * computed by one thread only and the other callers wait on its task. Once the value is stored the task is dropped,
+ * and a stored entry costs a key and a reference.
+ */
+@ThreadSafe
+public class LongMemoizer<V> implements LongComputable<V> {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    //Stands for a computed null, so that a null slot always means empty.
+    private static final Object NULL = new Object();
+    //Key is in the table but its last computation failed, the next caller computes again.
+    private static final Object RETRY = new Object();
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final LongComputable<V> c;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final Counter hits = MetricsRegistry.global().counter("LongMemoizer.hits");
+    private final Counter misses = MetricsRegistry.global().counter("LongMemoizer.misses");
+
+    public LongMemoizer(LongComputable<V> c) {
+        this(c, 1 << 10, 64);
+    }
+
+    /**
+     * @param expectedSize entries to size the tables for, so that filling the memoizer up to it needs no resize
+     * @param concurrencyLevel number of segments, rounded up to a power of two
+     */
+    public LongMemoizer(LongComputable<V> c, int expectedSize, int concurrencyLevel) {
+        if (expectedSize < 0 || concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("expectedSize " + expectedSize + ", concurrencyLevel " + concurrencyLevel);
+        }
+        int n = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1) << 1);
+        this.c = c;
+        this.segments = new Segment[n];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+        int perSegment = (int) Math.min(1 << 30, (long) (expectedSize / (double) n / LOAD_FACTOR) + 1);
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(tableSize(perSegment), hits, misses);
+        }
+    }
+
+    @Override
+    public V compute(long arg) throws InterruptedException {
+        long h = mix(arg);
+        Segment segment = segments[segmentShift == 64 ? 0 : (int) (h >>> segmentShift)];
+        Object slot = segment.find(arg, (int) h);
+        if (slot == null || slot == RETRY) {
+            slot = segment.claim(arg, (int) h, c);
+        } else {
+            hits.inc();
+        }
+        if (slot instanceof Pending) {
+            return unmask(((Pending) slot).await());
+        }
+        return unmask(slot);
+    }
+
+    /**
+     * Number of keys in the table, including those whose computation is still running or failed.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                n += segment.size;
+            }
+        }
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V unmask(Object slot) {
+        return slot == NULL ? null : (V) slot;
+    }
+
+    //Keys are often sequential ids, spread them before they pick a segment and a slot.
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static int tableSize(int slots) {
+        return Math.max(16, Integer.highestOneBit(Math.max(1, slots - 1) << 1));
+    }
+
+    private static RuntimeException launderThrowable(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            return new IllegalStateException("computation failed", t);
+        }
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final Object[] slots;
+
+        Table(int size) {
+            keys = new long[size];
+            slots = new Object[size];
+        }
+    }
+
+    private static final class Segment {
+        private final Counter hits;
+        private final Counter misses;
+        //Replaced as a whole on resize, a reader probes whichever table it read.
+        private volatile Table table;
+        @GuardedBy("this") private int size;
+
+        Segment(int tableSize, Counter hits, Counter misses) {
+            this.table = new Table(tableSize);
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        /**
+         * Lock free lookup. A key is written before its slot is released, so a non null slot read with acquire comes
+         * with its key. A null slot ends the probe; the key may still be in flight, claim() sorts that out under the
+         * lock.
+         */
+        Object find(long key, int h) {
+            Table t = table;
+            int mask = t.keys.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Object slot = SLOTS.getAcquire(t.slots, i);
+                if (slot == null) {
+                    return null;
+                }
+                if (t.keys[i] == key) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Returns what is in the slot of key, after putting a Pending task there if there is no value yet and no
+         * computation running. A Pending created here is run by the caller before it returns.
+         */
+        Object claim(long key, int h, LongComputable<?> c) {
+            Pending pending;
+            synchronized (this) {
+                Table t = table;
+                int i = indexOf(t, key, h);
+                Object slot = t.slots[i];
+                if (slot != null && slot != RETRY) {
+                    hits.inc();
+                    return slot;
+                }
+                misses.inc();
+                pending = new Pending(this, key, c);
+                if (slot == null) {
+                    if (++size > t.keys.length * LOAD_FACTOR) {
+                        t = resize(t);
+                        i = indexOf(t, key, h);
+                    }
+                    t.keys[i] = key;
+                }
+                SLOTS.setRelease(t.slots, i, pending);
+            }
+            pending.run();
+            return pending;
+        }
+
+        /**
+         * Replaces pending with its result, or with RETRY when it failed, in whatever table is current by now.
+         */
+        synchronized void complete(Pending pending, Object result) {
+            Table t = table;
+            int i = indexOf(t, pending.key, (int) mix(pending.key));
+            if (t.slots[i] == pending) {
+                SLOTS.setRelease(t.slots, i, result);
+            }
+        }
+
+        //Slot holding key, or the empty slot where it goes.
+        @GuardedBy("this")
+        private int indexOf(Table t, long key, int h) {
+            int mask = t.keys.length - 1;
+            int i = h & mask;
+            while (t.slots[i] != null && t.keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        @GuardedBy("this")
+        private Table resize(Table old) {
+            if (old.keys.length == 1 << 30) {
+                throw new IllegalStateException("LongMemoizer segment is full");
+            }
+            Table t = new Table(old.keys.length << 1);
+            for (int j = 0; j < old.keys.length; j++) {
+                Object slot = old.slots[j];
+                if (slot != null) {
+                    int i = indexOf(t, old.keys[j], (int) mix(old.keys[j]));
+                    t.keys[i] = old.keys[j];
+                    t.slots[i] = slot;
+                }
+            }
+            //The volatile write publishes the copied slots to readers of the new table.
+            table = t;
+            return t;
+        }
+    }
+
+    //Runs in the thread that claimed the key; other callers wait in await() until it stores the result.
+    private static final class Pending extends FutureTask<Object> {
+        final Segment segment;
+        final long key;
+
+        Pending(Segment segment, long key, LongComputable<?> c) {
+            super(() -> {
+                Object v = c.compute(key);
+                return v == null ? NULL : v;
+            });
+            this.segment = segment;
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            Object result = RETRY;
+            if (!isCancelled()) {
+                try {
+                    result = get();
+                } catch (ExecutionException | InterruptedException e) {
+                    //Left as RETRY, failures are not cached.
+                }
+            }
+            segment.complete(this, result);
+        }
+
+        Object await() throws InterruptedException {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw launderThrowable(e.getCause());
+            }
+        }
+    }
+}
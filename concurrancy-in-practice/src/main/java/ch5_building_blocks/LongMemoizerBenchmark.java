@@ -0,0 +1,80 @@
+package ch5_building_blocks;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+/**
+ * Footprint and hit latency of {@link Memoizer} against {@link LongMemoizer}, both filled with the same long keys.
+ *
+ * The computation returns small cached Longs, so the heap difference is the cost of the tables themselves. The default
+ * of 10M entries needs more than the default heap on small machines: run with -Xmx2g, or pass a smaller entry count.
+ */
+public class LongMemoizerBenchmark {
+
+    private static final int LOOKUPS = 20_000_000;
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        long[] keys = new long[entries];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < entries; i++) {
+            keys[i] = random.nextLong();
+        }
+        //Lookup order is fixed up front so both runs probe the same keys.
+        int[] order = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            order[i] = random.nextInt(entries);
+        }
+
+        long base = usedHeap();
+        LongMemoizer<Long> primitive = new LongMemoizer<>(k -> k & 127, entries, 64);
+        for (long k : keys) {
+            primitive.compute(k);
+        }
+        long primitiveBytes = usedHeap() - base;
+        report("LongMemoizer", entries, primitiveBytes, time(order, keys, k -> primitive.compute(k)));
+        sink += primitive.size();
+
+        base = usedHeap();
+        Memoizer<Long, Long> boxed = new Memoizer<>(k -> k & 127);
+        for (long k : keys) {
+            boxed.compute(k);
+        }
+        long boxedBytes = usedHeap() - base;
+        report("Memoizer", entries, boxedBytes, time(order, keys, k -> boxed.compute(k)));
+    }
+
+    //Returns {ns per hit, bytes allocated per hit} of the second of two passes.
+    private static double[] time(int[] order, long[] keys, LongComputable<Long> memoizer) throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        double[] result = new double[2];
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            long allocated = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i : order) {
+                sum += memoizer.compute(keys[i]);
+            }
+            long elapsed = System.nanoTime() - start;
+            sink += sum;
+            result[0] = (double) elapsed / order.length;
+            result[1] = (double) (threads.getThreadAllocatedBytes(id) - allocated) / order.length;
+        }
+        return result;
+    }
+
+    private static void report(String name, int entries, long bytes, double[] hit) {
+        System.out.printf("%-12s %,d entries: %.1f bytes/entry, hit %.1f ns, %.1f bytes allocated/hit%n",
+                name, entries, (double) bytes / entries, hit[0], hit[1]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,76 @@
+package ch5_building_blocks;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+//Correct Implementation
+class  Memoizer<A,V> implements Computable<A,V> {
+
+    private final Map<A,Future<V>> cache = new ConcurrentHashMap<>();
+    private final Computable<A,V> c;
+    private final Counter hits = MetricsRegistry.global().counter("Memoizer.hits");
+    private final Counter misses = MetricsRegistry.global().counter("Memoizer.misses");
+    private final Counter spillHits = MetricsRegistry.global().counter("Memoizer.spillHits");
+    private final SpillStore<A,V> spill; // Optional persistence tier, null when results live in memory only.
+
+    public Memoizer(Computable<A, V> c) {
+        this(c, null);
+    }
+
+    // Results are also appended to spill, and on a miss the spill file is checked before computing, so a restarted
+    // Memoizer serves earlier results from the file one record at a time.
+    public Memoizer(Computable<A, V> c, SpillStore<A,V> spill) {
+        this.c = c;
+        this.spill = spill;
+    }
+
+    @Override
+    public V compute(A arg) throws InterruptedException {
+        Future<V> future = cache.get(arg);
+
+        if(future == null){
+            FutureTask<V> futureTask = new FutureTask<>(() -> load(arg));
+            future = cache.putIfAbsent(arg, futureTask);
+            if(future == null){
+                 // We won the race, so we are the only thread computing this value.
+                 misses.inc();
+                 future = futureTask;
+                 futureTask.run();
+            } else {
+                 hits.inc();
+            }
+        } else {
+            hits.inc();
+        }
+        V v = null;
+        try {
+            v = future.get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return v;
+    }
+
+    private V load(A arg) throws InterruptedException {
+        if (spill == null) {
+            return c.compute(arg);
+        }
+        V v = spill.get(arg);
+        if (v != null) {
+            spillHits.inc();
+            return v;
+        }
+        v = c.compute(arg);
+        try {
+            spill.put(arg, v);
+        } catch (IOException e) {
+            // Losing the persisted copy only costs a recompute after the next restart.
+            e.printStackTrace();
+        }
+        return v;
+    }
+}
@@ -3,11 +3,6 @@ package ch5_building_blocks;
 import java.util.Map;
 import java.util.concurrent.*;
 
-interface Computable<A,V>{
-
-    V compute (A arg) throws InterruptedException;
-}
-
 public  class  Memoizer1<A,V> implements Computable<A,V> {
 
     private final Map<A,V> cache = new ConcurrentHashMap<>();
@@ -60,35 +55,3 @@ class  Memoizer3<A,V> implements Computable<A,V> {
         return v;
     }
 }
-
-//Correct Implementation
-class  Memoizer<A,V> implements Computable<A,V> {
-
-    private final Map<A,Future<V>> cache = new ConcurrentHashMap<>();
-    private final Computable<A,V> c;
-
-    public Memoizer(Computable<A, V> c) {
-        this.c = c;
-    }
-
-    @Override
-    public V compute(A arg) throws InterruptedException {
-        Future<V> future = cache.get(arg);
-
-        if(future == null){
-            FutureTask<V> futureTask = new FutureTask<>(() -> c.compute(arg));
-            Future<V> future1 = cache.putIfAbsent(arg, future);
-            if(future1 != null){
-                 future = futureTask;
-                 futureTask.run();
-            }
-        }
-        V v = null;
-        try {
-            v = future.get();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
-        return v;
-    }
-}
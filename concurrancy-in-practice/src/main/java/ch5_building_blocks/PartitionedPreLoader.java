@@ -0,0 +1,333 @@
+package ch5_building_blocks;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link PreLoader} split into partitions: every partition of the catalog is loaded by its own FutureTask on the given
+ * executor, and get(id) only waits for the partition that owns the id.
+ *
+ * Once every partition has loaded, a compact binary snapshot is written next to the catalog. On the next start the
+ * snapshot is memory mapped instead of loading again, as long as it is younger than maxAge; lookups binary search the
+ * mapped index and decode just the one record, so nothing is deserialized up front. An older snapshot is ignored, and
+ * the cold load that follows writes a fresh one. Delete the snapshot file to force a cold load.
+ */
+@ThreadSafe
+public class PartitionedPreLoader {
+
+    public interface PartitionSource {
+        //Loads every product whose id belongs to the given partition, see partitionOf.
+        Map<Long, ProductInfo> load(int partition, int partitions) throws Exception;
+    }
+
+    private static final int MAGIC = 0x50524c44; //"PRLD"
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+    //Bytes written per FileChannel.write; fits the largest record, a price, a length and 0xFFFF bytes of name.
+    private static final int WRITE_CHUNK = 1 << 17;
+
+    private final int partitions;
+    private final Path snapshot;
+    private final Duration maxAge;
+    private final Executor executor;
+    private final List<PartitionLoad> loads = new ArrayList<>();
+    //Partitions still loading; the one that brings it to zero schedules the snapshot.
+    private final AtomicInteger loading;
+    private volatile Snapshot mapped;
+
+    public PartitionedPreLoader(PartitionSource source, int partitions, Path snapshot, Executor executor) {
+        this(source, partitions, snapshot, Duration.ofDays(1), executor);
+    }
+
+    public PartitionedPreLoader(PartitionSource source, int partitions, Path snapshot, Duration maxAge, Executor executor) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be > 0: " + partitions);
+        }
+        this.partitions = partitions;
+        this.snapshot = snapshot;
+        this.maxAge = maxAge;
+        this.executor = executor;
+        this.loading = new AtomicInteger(partitions);
+        for (int i = 0; i < partitions; i++) {
+            int partition = i;
+            loads.add(new PartitionLoad(() -> source.load(partition, partitions)));
+        }
+    }
+
+    public static int partitionOf(long id, int partitions) {
+        return Math.floorMod(Long.hashCode(id) * 0x9E3779B9, partitions);
+    }
+
+    /**
+     * Maps the snapshot if a valid one younger than maxAge exists, otherwise starts loading every partition in parallel.
+     */
+    public void start() {
+        try {
+            if (Files.exists(snapshot)
+                    && Files.getLastModifiedTime(snapshot).toInstant().isAfter(Instant.now().minus(maxAge))) {
+                mapped = Snapshot.map(snapshot);
+                return;
+            }
+        } catch (IOException e) {
+            //Corrupt or unreadable snapshot, fall back to a cold load.
+            e.printStackTrace();
+        }
+        for (PartitionLoad load : loads) {
+            executor.execute(load);
+        }
+    }
+
+    public boolean isWarmStart() {
+        return mapped != null;
+    }
+
+    /**
+     * Returns the product with the given id, or null. Blocks only until the partition owning {@code id} has loaded.
+     */
+    public ProductInfo get(long id) throws InterruptedException {
+        Snapshot s = mapped;
+        if (s != null) {
+            return s.get(id);
+        }
+        try {
+            return loads.get(partitionOf(id, partitions)).get().get(id);
+        } catch (ExecutionException e) {
+            throw launderThrowable(e.getCause());
+        }
+    }
+
+    //Runs once every partition has completed, so get() does not block here.
+    private void writeSnapshot() {
+        List<Map<Long, ProductInfo>> loaded = new ArrayList<>(partitions);
+        try {
+            for (PartitionLoad load : loads) {
+                loaded.add(load.get());
+            }
+            Snapshot.write(snapshot, loaded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //The failure is reported to the callers of get, there is just no snapshot this time.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final class PartitionLoad extends FutureTask<Map<Long, ProductInfo>> {
+        PartitionLoad(Callable<Map<Long, ProductInfo>> load) {
+            super(load);
+        }
+
+        @Override
+        protected void done() {
+            if (loading.decrementAndGet() == 0) {
+                executor.execute(PartitionedPreLoader.this::writeSnapshot);
+            }
+        }
+    }
+
+    private static RuntimeException launderThrowable(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            return new IllegalStateException("loading products failed", t);
+        }
+    }
+
+    /**
+     * Layout: magic, count, offset of the record area, then count sorted ids, count record offsets and the records
+     * (price, name length, UTF-8 name). All reads are absolute, so one mapped buffer is shared by every reader thread.
+     * One mapping holds at most Integer.MAX_VALUE bytes, so a larger catalog gets no snapshot.
+     */
+    private static final class Snapshot {
+        private final MappedByteBuffer buffer;
+        private final int count;
+        private final int recordsStart;
+
+        //Checks the header and the end of the last record against the file size, so a truncated file is rejected
+        //here and start() falls back to a cold load, instead of get() failing later.
+        private Snapshot(MappedByteBuffer buffer) throws IOException {
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException("not a product snapshot");
+            }
+            this.buffer = buffer;
+            this.count = buffer.getInt(4);
+            this.recordsStart = buffer.getInt(8);
+            if (count < 0 || (long) HEADER_BYTES + (long) count * (Long.BYTES + Integer.BYTES) != recordsStart
+                    || recordsStart > buffer.capacity()) {
+                throw new IOException("corrupt product snapshot header");
+            }
+            if (count > 0) {
+                long last = (long) recordsStart + buffer.getInt(HEADER_BYTES + count * Long.BYTES + (count - 1) * Integer.BYTES);
+                if (last < recordsStart || last + Long.BYTES + Short.BYTES > buffer.capacity()
+                        || last + Long.BYTES + Short.BYTES + (buffer.getShort((int) last + Long.BYTES) & 0xFFFF) != buffer.capacity()) {
+                    throw new IOException("truncated product snapshot");
+                }
+            }
+        }
+
+        static Snapshot map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                //The mapping stays valid after the channel is closed.
+                return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        ProductInfo get(long id) {
+            int low = 0, high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long midId = buffer.getLong(HEADER_BYTES + mid * Long.BYTES);
+                if (midId < id) {
+                    low = mid + 1;
+                } else if (midId > id) {
+                    high = mid - 1;
+                } else {
+                    return read(id, buffer.getInt(HEADER_BYTES + count * Long.BYTES + mid * Integer.BYTES));
+                }
+            }
+            return null;
+        }
+
+        private ProductInfo read(long id, int offset) {
+            int at = recordsStart + offset;
+            long price = buffer.getLong(at);
+            int length = buffer.getShort(at + Long.BYTES) & 0xFFFF;
+            byte[] name = new byte[length];
+            buffer.get(at + Long.BYTES + Short.BYTES, name);
+            return new ProductInfo(id, new String(name, StandardCharsets.UTF_8), price);
+        }
+
+        //partitions holds the products of partition i at index i.
+        static void write(Path path, List<Map<Long, ProductInfo>> partitions) throws IOException {
+            long count = 0;
+            for (Map<Long, ProductInfo> partition : partitions) {
+                count += partition.size();
+            }
+            long recordsStart = HEADER_BYTES + count * (Long.BYTES + Integer.BYTES);
+            if (recordsStart > Integer.MAX_VALUE) {
+                throw new IOException("too many products for a snapshot: " + count);
+            }
+            long[] ids = new long[(int) count];
+            int n = 0;
+            for (Map<Long, ProductInfo> partition : partitions) {
+                for (Long id : partition.keySet()) {
+                    ids[n++] = id;
+                }
+            }
+            Arrays.sort(ids);
+
+            //Names are encoded here for their lengths and again while writing, so they are never all held at once.
+            int[] offsets = new int[ids.length];
+            long recordBytes = 0;
+            for (int i = 0; i < ids.length; i++) {
+                int length = name(product(partitions, ids[i])).length;
+                if (length > 0xFFFF) {
+                    throw new IOException("product name too long: " + ids[i]);
+                }
+                offsets[i] = (int) recordBytes;
+                recordBytes += Long.BYTES + Short.BYTES + length;
+                if (recordsStart + recordBytes > Integer.MAX_VALUE) {
+                    throw new IOException("catalog too large for a snapshot: more than " + Integer.MAX_VALUE + " bytes");
+                }
+            }
+
+            //Write aside and rename, so a crash never leaves a half written snapshot behind.
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer out = ByteBuffer.allocate(WRITE_CHUNK);
+                out.putInt(MAGIC).putInt(ids.length).putInt((int) recordsStart);
+                for (long id : ids) {
+                    room(channel, out, Long.BYTES).putLong(id);
+                }
+                for (int offset : offsets) {
+                    room(channel, out, Integer.BYTES).putInt(offset);
+                }
+                for (long id : ids) {
+                    ProductInfo product = product(partitions, id);
+                    byte[] name = name(product);
+                    room(channel, out, Long.BYTES + Short.BYTES + name.length)
+                            .putLong(product.priceCents).putShort((short) name.length).put(name);
+                }
+                room(channel, out, WRITE_CHUNK); //Fits only when nothing is left to write.
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static ProductInfo product(List<Map<Long, ProductInfo>> partitions, long id) {
+            return partitions.get(partitionOf(id, partitions.size())).get(id);
+        }
+
+        private static byte[] name(ProductInfo product) {
+            return product.name == null ? new byte[0] : product.name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        //Writes out what is buffered unless bytes more still fit; returns out, cleared if it was written.
+        private static ByteBuffer room(FileChannel channel, ByteBuffer out, int bytes) throws IOException {
+            if (out.remaining() < bytes) {
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                out.clear();
+            }
+            return out;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int products = 200_000;
+        PartitionSource slowDatabase = (partition, partitionCount) -> {
+            Map<Long, ProductInfo> result = new HashMap<>();
+            for (long id = 0; id < products; id++) {
+                if (partitionOf(id, partitionCount) == partition) {
+                    result.put(id, new ProductInfo(id, "product-" + id, id * 10));
+                }
+            }
+            Thread.sleep(500); //Stands for the database round trips.
+            return result;
+        };
+        Path file = Files.createTempFile("products", ".snapshot");
+        Files.delete(file);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (String run : new String[]{"cold", "warm"}) {
+                long start = System.nanoTime();
+                PartitionedPreLoader loader = new PartitionedPreLoader(slowDatabase, 16, file, executor);
+                loader.start();
+                ProductInfo first = loader.get(42);
+                long firstHit = System.nanoTime() - start;
+                for (long id = 0; id < products; id += 100) {
+                    loader.get(id);
+                }
+                System.out.printf("%s start (snapshot=%b): first hit %d ms, all partitions %d ms, %s%n", run,
+                        loader.isWarmStart(), firstHit / 1_000_000, (System.nanoTime() - start) / 1_000_000, first.name);
+                //Wait for the snapshot written after the cold load.
+                while (!Files.exists(file)) {
+                    Thread.sleep(10);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+}
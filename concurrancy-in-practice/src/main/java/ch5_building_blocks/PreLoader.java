@@ -25,6 +25,3 @@ public class PreLoader {
         return null;
     }
 }
-
-class ProductInfo {
-}
@@ -0,0 +1,13 @@
+package ch5_building_blocks;
+
+class ProductInfo {
+    final long id;
+    final String name;
+    final long priceCents;
+
+    ProductInfo(long id, String name, long priceCents) {
+        this.id = id;
+        this.name = name;
+        this.priceCents = priceCents;
+    }
+}
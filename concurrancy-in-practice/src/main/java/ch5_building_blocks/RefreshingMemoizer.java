@@ -0,0 +1,138 @@
+package ch5_building_blocks;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link Memoizer} whose entries age, with refresh-ahead instead of a blocking recompute on expiry.
+ *
+ * An entry younger than refreshAfter is served as is. An older one is still served, but the first caller to see it
+ * starts a single background reload on the executor; when the reload succeeds the new value replaces the entry
+ * atomically, when it fails the stale value stays and a later caller tries again. Only an entry older than maxAge, which
+ * means reloads kept failing or nobody asked for a long time, makes callers wait for a recompute, and then only one
+ * thread computes while the others wait on its Future, just like a first load.
+ */
+@ThreadSafe
+public class RefreshingMemoizer<A, V> implements Computable<A, V> {
+
+    private final ConcurrentMap<A, Loader> cache = new ConcurrentHashMap<>();
+    private final Computable<A, V> c;
+    private final long refreshAfterNanos;
+    private final long maxAgeNanos;
+    private final Executor reloadExecutor;
+    private final LongSupplier clock;
+    private final Counter refreshes = MetricsRegistry.global().counter("RefreshingMemoizer.refreshes");
+    private final Counter refreshFailures = MetricsRegistry.global().counter("RefreshingMemoizer.refreshFailures");
+
+    public RefreshingMemoizer(Computable<A, V> c, long refreshAfter, long maxAge, TimeUnit unit, Executor reloadExecutor) {
+        this(c, refreshAfter, maxAge, unit, reloadExecutor, System::nanoTime);
+    }
+
+    RefreshingMemoizer(Computable<A, V> c, long refreshAfter, long maxAge, TimeUnit unit, Executor reloadExecutor,
+                       LongSupplier clock) {
+        if (refreshAfter <= 0 || maxAge < refreshAfter) {
+            throw new IllegalArgumentException("need 0 < refreshAfter <= maxAge");
+        }
+        this.c = c;
+        this.refreshAfterNanos = unit.toNanos(refreshAfter);
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.reloadExecutor = reloadExecutor;
+        this.clock = clock;
+    }
+
+    @Override
+    public V compute(A arg) throws InterruptedException {
+        while (true) {
+            Loader loader = cache.get(arg);
+            if (loader == null) {
+                Loader created = new Loader(arg);
+                loader = cache.putIfAbsent(arg, created);
+                if (loader == null) {
+                    loader = created;
+                    created.run();
+                }
+            }
+            if (loader.isDone()) {
+                long age = clock.getAsLong() - loader.loadedAt;
+                if (age >= maxAgeNanos) {
+                    //Too stale to serve: replace it with a new load, the thread that wins the replace runs it.
+                    Loader reload = new Loader(arg);
+                    if (!cache.replace(arg, loader, reload)) {
+                        continue;
+                    }
+                    reload.run();
+                    loader = reload;
+                } else if (age >= refreshAfterNanos) {
+                    refreshAhead(arg, loader);
+                }
+            }
+            try {
+                return loader.get();
+            } catch (ExecutionException e) {
+                //Do not cache failures, the next caller computes again.
+                cache.remove(arg, loader);
+                throw launderThrowable(e.getCause());
+            }
+        }
+    }
+
+    private void refreshAhead(A arg, Loader current) {
+        if (!current.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Loader reload = new Loader(arg) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    current.refreshing.set(false);
+                    return;
+                }
+                try {
+                    get();
+                    refreshes.inc();
+                    cache.replace(arg, current, this);
+                } catch (ExecutionException | InterruptedException e) {
+                    //Keep serving the stale value; a later caller retries the refresh.
+                    refreshFailures.inc();
+                    current.refreshing.set(false);
+                }
+            }
+        };
+        try {
+            reloadExecutor.execute(reload);
+        } catch (RejectedExecutionException e) {
+            current.refreshing.set(false);
+        }
+    }
+
+    private static RuntimeException launderThrowable(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            return new IllegalStateException("computation failed", t);
+        }
+    }
+
+    private class Loader extends FutureTask<V> {
+        //Written in set(), before the Future completes for get() and isDone() callers.
+        volatile long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Loader(A arg) {
+            super(() -> c.compute(arg));
+        }
+
+        @Override
+        protected void set(V v) {
+            loadedAt = clock.getAsLong();
+            super.set(v);
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package ch5_building_blocks;
 
+import metrics.ProfiledLock;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Simple {
 
@@ -23,13 +33,42 @@ public class Simple {
 
 
 class HiddenIterator{
+    private final Lock profiled = ProfiledLock.ifEnabled("HiddenIterator");
+    @GuardedBy("this")
     private final Set<Integer> set = new HashSet<>();
 
-    public synchronized void add(Integer i){
+    public void add(Integer i){
+        ProfiledLock.withLock(profiled, this, () -> set.add(i));
+    }
+
+    public void remove(Integer i){
+        ProfiledLock.withLock(profiled, this, () -> set.remove(i));
+    }
+
+    public void addThings(){
+        Random r = new Random();
+        for (int i = 0; i < 10; i++) {
+            add(r.nextInt());
+        }
+
+        System.out.println("DEBUG : Added 10 elements to set " + set);
+
+    }
+}
+
+
+//HiddenIterator on a concurrent set: no lock to forget, toString and the other iterations are weakly consistent.
+@ThreadSafe
+class ConcurrentHiddenIterator{
+    //Key set view of a ConcurrentHashMap, which gives us the map's fork-join bulk operations on the elements.
+    private final ConcurrentHashMap<Integer, Boolean> map = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap.KeySetView<Integer, Boolean> set = map.keySet(Boolean.TRUE);
+
+    public void add(Integer i){
         set.add(i);
     }
 
-    public synchronized void remove(Integer i){
+    public void remove(Integer i){
         set.remove(i);
     }
 
@@ -39,7 +78,50 @@ class HiddenIterator{
             add(r.nextInt());
         }
 
+        //Iteration never throws ConcurrentModificationException; it sees every element present for the whole
+        //traversal and may or may not see those added or removed meanwhile.
         System.out.println("DEBUG : Added 10 elements to set " + set);
+    }
+
+    // The bulk operations run in parallel on the common fork-join pool once the set holds more than
+    // parallelismThreshold elements, and sequentially below it (Long.MAX_VALUE: always sequential, 1: as parallel as possible).
+
+    public void forEach(long parallelismThreshold, Consumer<? super Integer> action){
+        map.forEachKey(parallelismThreshold, action);
+    }
 
+    // Null when the set is empty.
+    public Integer reduce(long parallelismThreshold, BiFunction<? super Integer, ? super Integer, ? extends Integer> reducer){
+        return map.reduceKeys(parallelismThreshold, reducer);
     }
-}
\ No newline at end of file
+
+    // First non null result of searchFunction, with no guarantee which element it came from when several match.
+    public <U> U search(long parallelismThreshold, Function<? super Integer, ? extends U> searchFunction){
+        return map.searchKeys(parallelismThreshold, searchFunction);
+    }
+
+    public static void main(String[] args) {
+        ConcurrentHiddenIterator it = new ConcurrentHiddenIterator();
+        it.addThings();
+        for (int i = 0; i < 1_000_000; i++) {
+            it.add(i);
+        }
+        Thread mutator = new Thread(() -> {
+            for (int i = 1_000_000; i < 2_000_000; i++) {
+                it.add(i);
+                it.remove(i - 1_000_000);
+            }
+        });
+        mutator.start();
+        //All of these run while the set changes under them.
+        LongAdder even = new LongAdder();
+        it.forEach(10_000, i -> {
+            if (i % 2 == 0) {
+                even.increment();
+            }
+        });
+        Integer max = it.reduce(10_000, Math::max);
+        Integer multipleOf999_999 = it.search(10_000, i -> i > 0 && i % 999_999 == 0 ? i : null);
+        System.out.println("even " + even.sum() + ", max " + max + ", found " + multipleOf999_999);
+    }
+}
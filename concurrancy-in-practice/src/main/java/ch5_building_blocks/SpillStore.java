@@ -0,0 +1,186 @@
+package ch5_building_blocks;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only, memory mapped file of computed results, so a {@link Memoizer} keeps its work across restarts.
+ *
+ * The file is a series of fixed size mapped segments holding records [key length + 1, value length, key, value]; a zero
+ * length ends the data of a segment. Opening a store only walks the record headers to build an index from the hash of
+ * the encoded key to record offsets. Keys and values stay in the file and are decoded one record at a time on a hit.
+ *
+ * Appends are serialized by the store lock. A record is written before its offset is added to the index (a concurrent
+ * map), which publishes it to readers; readers never take the lock.
+ */
+@ThreadSafe
+public class SpillStore<A, V> implements Closeable {
+
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private final Codec<A> keyCodec;
+    private final Codec<V> valueCodec;
+    private final FileChannel channel;
+    private final int segmentSize;
+    //Hash of the encoded key -> offsets of the records with that hash.
+    private final Map<Integer, long[]> index = new ConcurrentHashMap<>();
+
+    //Copy on write, readers index into whatever array they see.
+    private volatile MappedByteBuffer[] segments;
+    @GuardedBy("this") private long writeOffset;
+
+    public SpillStore(Path file, Codec<A> keyCodec, Codec<V> valueCodec) throws IOException {
+        this(file, keyCodec, valueCodec, 64 << 20);
+    }
+
+    public SpillStore(Path file, Codec<A> keyCodec, Codec<V> valueCodec, int segmentSize) throws IOException {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.segmentSize = segmentSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int count = (int) Math.max(1, (channel.size() + segmentSize - 1) / segmentSize);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                mapped[i] = map(i);
+            }
+            this.segments = mapped;
+            for (int i = 0; i < count; i++) {
+                writeOffset = (long) i * segmentSize + scan(i, mapped[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the stored value for {@code key}, or null. Only the matching record is decoded.
+     */
+    public V get(A key) {
+        byte[] encoded = keyCodec.encode(key);
+        long[] offsets = index.get(Arrays.hashCode(encoded));
+        if (offsets == null) {
+            return null;
+        }
+        MappedByteBuffer[] s = segments;
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            ByteBuffer segment = s[(int) (offsets[i] / segmentSize)];
+            int at = (int) (offsets[i] % segmentSize);
+            int keyLength = segment.getInt(at) - 1;
+            int valueLength = segment.getInt(at + Integer.BYTES);
+            if (keyLength == encoded.length && sameBytes(segment, at + HEADER, encoded)) {
+                return valueCodec.decode(segment.slice(at + HEADER + keyLength, valueLength));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends {@code key} and {@code value}. Returns false when the record is larger than a segment and was not stored.
+     */
+    public boolean put(A key, V value) throws IOException {
+        byte[] k = keyCodec.encode(key);
+        byte[] v = valueCodec.encode(value);
+        int size = HEADER + k.length + v.length;
+        if (size > segmentSize) {
+            return false;
+        }
+        long offset;
+        synchronized (this) {
+            int segment = (int) (writeOffset / segmentSize);
+            int at = (int) (writeOffset % segmentSize);
+            if (at + size > segmentSize) {
+                //The zero filled rest of the segment ends its data.
+                segment++;
+                at = 0;
+            }
+            MappedByteBuffer[] s = segments;
+            if (segment == s.length) {
+                s = Arrays.copyOf(s, segment + 1);
+                s[segment] = map(segment);
+                segments = s;
+            }
+            ByteBuffer buffer = s[segment];
+            buffer.put(at + HEADER, k).put(at + HEADER + k.length, v);
+            //Header last: a record with a non zero header is always complete.
+            buffer.putInt(at + Integer.BYTES, v.length).putInt(at, k.length + 1);
+            offset = (long) segment * segmentSize + at;
+            writeOffset = offset + size;
+        }
+        addToIndex(Arrays.hashCode(k), offset);
+        return true;
+    }
+
+    public int size() {
+        int n = 0;
+        for (long[] offsets : index.values()) {
+            n += offsets.length;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        channel.close();
+    }
+
+    private MappedByteBuffer map(int segment) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * segmentSize, segmentSize);
+    }
+
+    //Indexes the records of one segment and returns where its data ends.
+    private int scan(int segment, ByteBuffer buffer) {
+        int at = 0;
+        while (at + HEADER <= segmentSize) {
+            int keyLength = buffer.getInt(at) - 1;
+            int valueLength = buffer.getInt(at + Integer.BYTES);
+            if (keyLength < 0 || valueLength < 0 || at + HEADER + (long) keyLength + valueLength > segmentSize) {
+                break;
+            }
+            addToIndex(hash(buffer, at + HEADER, keyLength), (long) segment * segmentSize + at);
+            at += HEADER + keyLength + valueLength;
+        }
+        return at;
+    }
+
+    private void addToIndex(int hash, long offset) {
+        index.merge(hash, new long[]{offset}, (old, added) -> {
+            long[] merged = Arrays.copyOf(old, old.length + 1);
+            merged[old.length] = added[0];
+            return merged;
+        });
+    }
+
+    //Same result as Arrays.hashCode over the bytes, without copying them out of the mapping.
+    private static int hash(ByteBuffer buffer, int from, int length) {
+        int h = 1;
+        for (int i = from; i < from + length; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        return h;
+    }
+
+    private static boolean sameBytes(ByteBuffer buffer, int from, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+package ch6_task_execution;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.Timer;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Replacement for java.util.Timer that neither dies of a throwing task nor runs every task on one thread.
+ *
+ * Tasks are spread round-robin over shards. Every shard has its own worker thread and its own 4-ary heap of deadlines,
+ * which only the worker touches; other threads hand new and cancelled tasks over through queues and wake the worker
+ * only when the new deadline is earlier than the one it sleeps until. A slow task delays only its own shard.
+ *
+ * A task that throws is reported to the failure handler and, if periodic, keeps its schedule. Periodic tasks run at a
+ * fixed rate on the grid initialDelay + n * period, so lateness never accumulates; a run that is more than a period late
+ * skips the runs it missed instead of running them back to back. Lag, the time between a deadline and the start of its
+ * run, goes to the "ShardedScheduler.lag" timer, with runs, failures and skipped runs as counters.
+ */
+@ThreadSafe
+public class ShardedScheduler {
+    //Longer delays and periods are clamped to this, about 146 years, as ScheduledThreadPoolExecutor does: deadlines then
+    //stay within half the range of nanoTime of each other, so comparing them by subtraction cannot overflow.
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE >> 1;
+
+    private final Shard[] shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final BiConsumer<Runnable, Throwable> onFailure;
+    private final Timer lag = MetricsRegistry.global().timer("ShardedScheduler.lag");
+    private final Counter runs = MetricsRegistry.global().counter("ShardedScheduler.runs");
+    private final Counter failures = MetricsRegistry.global().counter("ShardedScheduler.failures");
+    private final Counter skipped = MetricsRegistry.global().counter("ShardedScheduler.skipped");
+    private final AtomicLong scheduled = new AtomicLong();
+    private volatile boolean shutdown;
+
+    public ShardedScheduler(int nShards) {
+        this(nShards, (task, failure) -> failure.printStackTrace());
+    }
+
+    /**
+     * @param onFailure called on the shard's worker with a task and what it threw; must not block
+     */
+    public ShardedScheduler(int nShards, BiConsumer<Runnable, Throwable> onFailure) {
+        if (nShards <= 0) {
+            throw new IllegalArgumentException("nShards must be positive: " + nShards);
+        }
+        this.onFailure = onFailure;
+        shards = new Shard[nShards];
+        for (int i = 0; i < nShards; i++) {
+            shards[i] = new Shard("scheduler-shard-" + i);
+        }
+        for (Shard shard : shards) {
+            shard.worker.start();
+        }
+        MetricsRegistry.global().gauge("ShardedScheduler.scheduled", scheduled::get);
+    }
+
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        return submit(task, delay, 0, unit);
+    }
+
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        return submit(task, initialDelay, period, unit);
+    }
+
+    /**
+     * Tasks scheduled and not yet done or cancelled.
+     */
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * Stops the workers after their current task. Tasks not yet run are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.worker);
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + clamp(unit.toNanos(timeout));
+        for (Shard shard : shards) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(shard.worker, left);
+            }
+            if (shard.worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ScheduledTask submit(Runnable task, long delay, long period, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("scheduler is shut down");
+        }
+        Shard shard = shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+        ScheduledTask t = new ScheduledTask(shard, task, System.nanoTime() + clamp(unit.toNanos(Math.max(delay, 0))),
+                clamp(unit.toNanos(period)));
+        scheduled.incrementAndGet();
+        shard.added.add(t);
+        //Pairs with the worker publishing wakeAt before it looks at the queue again, so one of us sees the other.
+        if (t.deadline - shard.wakeAt < 0) {
+            LockSupport.unpark(shard.worker);
+        }
+        return t;
+    }
+
+    private static long clamp(long nanos) {
+        return Math.min(nanos, MAX_DELAY_NANOS);
+    }
+
+    public static final class ScheduledTask {
+        private final Shard shard;
+        private final Runnable task;
+        private final long period; //0 for a one-shot task
+        private volatile boolean cancelled;
+        //Worker only.
+        private long deadline;
+        private int index = -1; //position in the heap, -1 when not in it
+
+        private ScheduledTask(Shard shard, Runnable task, long deadline, long period) {
+            this.shard = shard;
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Prevents future runs; a run in progress completes.
+         */
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                shard.cancelled.add(this);
+                LockSupport.unpark(shard.worker);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        private final Thread worker;
+        private final Queue<ScheduledTask> added = new ConcurrentLinkedQueue<>();
+        private final Queue<ScheduledTask> cancelled = new ConcurrentLinkedQueue<>();
+        //Deadline the worker sleeps until, Long.MAX_VALUE-ish when idle; compared with subtraction for overflow.
+        private volatile long wakeAt = System.nanoTime() + Long.MAX_VALUE / 2;
+        //Worker only: 4-ary min heap on deadline, shallower than a binary heap and with siblings in one cache line.
+        private ScheduledTask[] heap = new ScheduledTask[64];
+        private int size;
+
+        Shard(String name) {
+            worker = new Thread(this, name);
+            worker.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                transfer();
+                if (size == 0) {
+                    sleepUntil(System.nanoTime() + Long.MAX_VALUE / 2);
+                    continue;
+                }
+                ScheduledTask next = heap[0];
+                long now = System.nanoTime();
+                if (next.deadline - now > 0) {
+                    sleepUntil(next.deadline);
+                    continue;
+                }
+                poll();
+                if (next.cancelled) {
+                    scheduled.decrementAndGet(); //Cancelled since the last transfer.
+                    continue;
+                }
+                runTask(next, now);
+            }
+        }
+
+        private void runTask(ScheduledTask t, long now) {
+            lag.record(now - t.deadline);
+            runs.inc();
+            try {
+                t.task.run();
+            } catch (Throwable e) {
+                failures.inc();
+                try {
+                    onFailure.accept(t.task, e);
+                } catch (Throwable ignored) {
+                    //A broken handler must not take the shard down either.
+                }
+            }
+            //An interrupt a task left set would make every parkNanos return at once and the worker spin.
+            Thread.interrupted();
+            if (t.period == 0 || t.cancelled) {
+                scheduled.decrementAndGet();
+                return;
+            }
+            long behind = System.nanoTime() - t.deadline;
+            long missed = behind / t.period; //Runs whose deadline has passed as well, 0 when on time.
+            if (missed > 0) {
+                skipped.add(missed);
+            }
+            //missed * period <= behind and period is clamped, so this cannot overflow either.
+            t.deadline += (missed + 1) * t.period;
+            offer(t);
+        }
+
+        private void transfer() {
+            for (ScheduledTask t; (t = added.poll()) != null; ) {
+                if (!t.cancelled) {
+                    offer(t);
+                } else {
+                    scheduled.decrementAndGet();
+                }
+            }
+            for (ScheduledTask t; (t = cancelled.poll()) != null; ) {
+                if (t.index >= 0) {
+                    remove(t.index);
+                    scheduled.decrementAndGet();
+                }
+            }
+        }
+
+        private void sleepUntil(long deadline) {
+            wakeAt = deadline;
+            //Recheck after publishing wakeAt: a task added before that did not unpark us.
+            if (added.isEmpty() && cancelled.isEmpty() && !shutdown) {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            }
+            wakeAt = System.nanoTime() - 1;
+        }
+
+        private void offer(ScheduledTask t) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            siftUp(size++, t);
+        }
+
+        private void poll() {
+            ScheduledTask top = heap[0];
+            top.index = -1;
+            ScheduledTask last = heap[--size];
+            heap[size] = null;
+            if (size > 0) {
+                siftDown(0, last);
+            }
+        }
+
+        private void remove(int i) {
+            heap[i].index = -1;
+            ScheduledTask last = heap[--size];
+            heap[size] = null;
+            if (i < size) {
+                siftDown(i, last);
+                if (heap[i] == last) {
+                    siftUp(i, last);
+                }
+            }
+        }
+
+        private void siftUp(int i, ScheduledTask t) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 2;
+                ScheduledTask p = heap[parent];
+                if (t.deadline - p.deadline >= 0) {
+                    break;
+                }
+                place(i, p);
+                i = parent;
+            }
+            place(i, t);
+        }
+
+        private void siftDown(int i, ScheduledTask t) {
+            while (true) {
+                int first = 4 * i + 1;
+                if (first >= size) {
+                    break;
+                }
+                int smallest = first;
+                for (int c = first + 1; c < Math.min(first + 4, size); c++) {
+                    if (heap[c].deadline - heap[smallest].deadline < 0) {
+                        smallest = c;
+                    }
+                }
+                if (heap[smallest].deadline - t.deadline >= 0) {
+                    break;
+                }
+                place(i, heap[smallest]);
+                i = smallest;
+            }
+            place(i, t);
+        }
+
+        private void place(int i, ScheduledTask t) {
+            heap[i] = t;
+            t.index = i;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ch6_task_execution;
+
+import metrics.MetricsRegistry;
+import metrics.Timer;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schedules 200k periodic jobs with a one second period on a {@link ShardedScheduler}, one in a thousand of them
+ * throwing on every run, and reports after a while how many runs happened against the expected count, the scheduling lag
+ * and the failures that were isolated. With java.util.Timer the first throwing job would have ended all of them.
+ */
+public class ShardedSchedulerBenchmark {
+
+    private static final int JOBS = 200_000;
+    private static final long PERIOD_MILLIS = 1000;
+    private static final int SECONDS = 10;
+
+    public static void main(String[] args) throws InterruptedException {
+        int shards = Math.max(2, Runtime.getRuntime().availableProcessors());
+        LongAdder failures = new LongAdder();
+        ShardedScheduler scheduler = new ShardedScheduler(shards, (task, e) -> failures.increment());
+        LongAdder runs = new LongAdder();
+        SplittableRandom random = new SplittableRandom(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < JOBS; i++) {
+            Runnable job = i % 1000 == 0 ? () -> {
+                throw new IllegalStateException("broken job");
+            } : runs::increment;
+            //Spread the first runs over one period, as real jobs would be.
+            scheduler.scheduleAtFixedRate(job, random.nextLong(PERIOD_MILLIS), PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        long scheduling = System.nanoTime() - start;
+
+        TimeUnit.SECONDS.sleep(SECONDS);
+        long healthyRuns = runs.sum();
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+
+        Timer lag = MetricsRegistry.global().timer("ShardedScheduler.lag");
+        long expected = (long) (JOBS - JOBS / 1000) * SECONDS;
+        System.out.printf("scheduled %,d periodic jobs on %d shards in %d ms%n", JOBS, shards, scheduling / 1_000_000);
+        System.out.printf("%,d runs of healthy jobs in %d s (%,d expected), %,d failures isolated, %,d runs skipped%n",
+                healthyRuns, SECONDS, expected, failures.sum(),
+                MetricsRegistry.global().counter("ShardedScheduler.skipped").getCount());
+        System.out.printf("lag mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+                lag.getMeanMicros(), lag.getP50Micros(), lag.getP99Micros(), lag.getMaxMicros());
+    }
+}
@@ -0,0 +1,226 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression stage for log output: the bytes are cut into blocks, the blocks are deflated in parallel on a worker pool,
+ * and written in order, followed by an index of the blocks so that {@link BlockCompressedReader} can start reading at
+ * any block.
+ *
+ * Blocks end after a line break when there is one, so every block starts at the beginning of a record. Each block is an
+ * independent raw deflate stream, no dictionary is shared between blocks. The file layout is
+ * [block]* [index entry]* [footer]. An index entry holds the uncompressed offset, file offset, compressed length,
+ * uncompressed length and CRC32 of a block. The footer holds the index offset, the block count and {@link #MAGIC}.
+ *
+ * Meant to sit under the writer of a single logger thread, e.g.
+ * {@code new PrintWriter(new OutputStreamWriter(new BlockCompressedOutputStream(out, workers, n), UTF_8))}. At most two
+ * blocks per worker are in flight; past that, the writing thread waits for the oldest, which is the back pressure to the
+ * logger. flush() writes the blocks that are already cut but does not cut the one being filled, since a block per flush
+ * would compress poorly; close() does.
+ */
+@NotThreadSafe
+public class BlockCompressedOutputStream extends OutputStream {
+    static final int MAGIC = 0x4c4f4742; // "LOGB"
+    static final int INDEX_ENTRY_BYTES = 2 * Long.BYTES + 3 * Integer.BYTES;
+    static final int FOOTER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+
+    //Deflaters are expensive to create and hold native memory, keep one per worker thread.
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    private final DataOutputStream out;
+    private final ExecutorService workers;
+    private final int blockSize;
+    private final int level;
+    private final int maxInFlight;
+    private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<>();
+    private final DataOutputStream index;
+    private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+
+    private byte[] current;
+    private int filled;
+    private long uncompressedOffset;
+    private long fileOffset;
+    private int blocks;
+    private boolean closed;
+
+    public BlockCompressedOutputStream(OutputStream out, ExecutorService workers, int nWorkers) {
+        this(out, workers, nWorkers, 256 * 1024, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param nWorkers threads of workers available to this stream, to bound the blocks in flight
+     * @param level deflate level; log text compresses well even at {@link Deflater#BEST_SPEED}, which is the default
+     *              and several times faster than the zlib default
+     */
+    public BlockCompressedOutputStream(OutputStream out, ExecutorService workers, int nWorkers, int blockSize, int level) {
+        if (blockSize <= 0 || nWorkers <= 0 || level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("blockSize " + blockSize + ", nWorkers " + nWorkers + ", level " + level);
+        }
+        this.out = new DataOutputStream(out);
+        this.workers = workers;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxInFlight = 2 * nWorkers;
+        this.index = new DataOutputStream(indexBytes);
+        this.current = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        current[filled++] = (byte) b;
+        if (filled == blockSize) {
+            cut();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - filled);
+            System.arraycopy(b, off, current, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == blockSize) {
+                cut();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeDone(false);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (filled > 0) {
+                submit(current, filled);
+                filled = 0;
+            }
+            writeDone(true);
+            out.write(indexBytes.toByteArray());
+            out.writeLong(fileOffset);
+            out.writeInt(blocks);
+            out.writeInt(MAGIC);
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    //Hands the full block to the workers, up to its last line break; the rest starts the next block.
+    private void cut() throws IOException {
+        int end = filled;
+        while (end > 0 && current[end - 1] != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            end = filled; //A record longer than a block, cut it anywhere.
+        }
+        byte[] next = new byte[blockSize];
+        int rest = filled - end;
+        System.arraycopy(current, end, next, 0, rest);
+        submit(current, end);
+        current = next;
+        filled = rest;
+    }
+
+    private void submit(byte[] data, int length) throws IOException {
+        while (inFlight.size() >= maxInFlight) {
+            writeBlock(await(inFlight.poll()));
+        }
+        inFlight.add(workers.submit(() -> compress(data, length, level)));
+        writeDone(false);
+    }
+
+    //Writes the finished blocks at the head of the queue, or all of them when wait is set.
+    private void writeDone(boolean wait) throws IOException {
+        while (!inFlight.isEmpty() && (wait || inFlight.peek().isDone())) {
+            writeBlock(await(inFlight.poll()));
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException {
+        out.write(block.compressed, 0, block.compressedLength);
+        index.writeLong(uncompressedOffset);
+        index.writeLong(fileOffset);
+        index.writeInt(block.compressedLength);
+        index.writeInt(block.length);
+        index.writeInt((int) block.crc);
+        uncompressedOffset += block.length;
+        fileOffset += block.compressedLength;
+        blocks++;
+    }
+
+    private static Block await(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a compressed block");
+        } catch (ExecutionException e) {
+            throw new IOException("block compression failed", e.getCause());
+        }
+    }
+
+    private static Block compress(byte[] data, int length, int level) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, length / 4)];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return new Block(compressed, n, length, crc.getValue());
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+    }
+
+    private static final class Block {
+        final byte[] compressed;
+        final int compressedLength;
+        final int length;
+        final long crc;
+
+        Block(byte[] compressed, int compressedLength, int length, long crc) {
+            this.compressed = compressed;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+}
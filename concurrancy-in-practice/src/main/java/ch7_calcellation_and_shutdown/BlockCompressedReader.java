@@ -0,0 +1,173 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by {@link BlockCompressedOutputStream}. Opening one reads only the footer and the block index;
+ * {@link #openAt} then inflates from the block holding an uncompressed offset, without touching the blocks before it.
+ *
+ * Reads go through positional FileChannel reads, so any number of threads can read one file at once.
+ */
+@ThreadSafe
+public class BlockCompressedReader implements Closeable {
+    private final FileChannel channel;
+    private final long[] uncompressedOffsets;
+    private final long[] fileOffsets;
+    private final int[] compressedLengths;
+    private final int[] lengths;
+    private final int[] crcs;
+
+    public BlockCompressedReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < BlockCompressedOutputStream.FOOTER_BYTES) {
+                throw new IOException(file + " is not a block compressed file");
+            }
+            ByteBuffer footer = read(size - BlockCompressedOutputStream.FOOTER_BYTES, BlockCompressedOutputStream.FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != BlockCompressedOutputStream.MAGIC) {
+                throw new IOException(file + " is not a block compressed file, or was not closed");
+            }
+            ByteBuffer index = read(indexOffset, count * BlockCompressedOutputStream.INDEX_ENTRY_BYTES);
+            uncompressedOffsets = new long[count];
+            fileOffsets = new long[count];
+            compressedLengths = new int[count];
+            lengths = new int[count];
+            crcs = new int[count];
+            for (int i = 0; i < count; i++) {
+                uncompressedOffsets[i] = index.getLong();
+                fileOffsets[i] = index.getLong();
+                compressedLengths[i] = index.getInt();
+                lengths[i] = index.getInt();
+                crcs[i] = index.getInt();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int blockCount() {
+        return lengths.length;
+    }
+
+    public long uncompressedLength() {
+        int last = lengths.length - 1;
+        return last < 0 ? 0 : uncompressedOffsets[last] + lengths[last];
+    }
+
+    /**
+     * Uncompressed offset of the first byte of a block. Blocks start at a record, so this is a place a reader can
+     * start parsing lines.
+     */
+    public long blockStart(int block) {
+        return uncompressedOffsets[block];
+    }
+
+    /**
+     * Index of the block that holds the byte at the uncompressed offset.
+     */
+    public int blockOf(long uncompressedOffset) {
+        if (uncompressedOffset < 0 || uncompressedOffset >= uncompressedLength()) {
+            throw new IndexOutOfBoundsException("offset " + uncompressedOffset + " of " + uncompressedLength());
+        }
+        int lo = 0;
+        int hi = uncompressedOffsets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (uncompressedOffsets[mid] <= uncompressedOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Decompressed content of one block, checked against its CRC.
+     */
+    public byte[] readBlock(int block) throws IOException {
+        byte[] data = new byte[lengths[block]];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(read(fileOffsets[block], compressedLengths[block]));
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                n += inflater.inflate(data, n, data.length - n);
+                if (inflater.needsInput()) {
+                    break;
+                }
+            }
+            if (n != data.length) {
+                throw new IOException("block " + block + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("block " + block + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != crcs[block]) {
+            throw new IOException("block " + block + " fails its checksum");
+        }
+        return data;
+    }
+
+    /**
+     * Stream of the uncompressed content from the start of the given block to the end of the file. Blocks are inflated
+     * one at a time as the stream reaches them.
+     */
+    public InputStream openAt(int firstBlock) {
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int next = firstBlock;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < lengths.length;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return new ByteArrayInputStream(readBlock(next++));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,58 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct buffers. Direct buffers are expensive to allocate and are only freed by the GC, so I/O
+ * code borrows one per read and gives it back instead of allocating.
+ *
+ * At most {@code maxPooled} buffers are kept; buffers released above that bound are left to the GC.
+ */
+@ThreadSafe
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException("bufferSize = " + bufferSize + ", maxPooled = " + maxPooled);
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer of {@link #bufferSize()} bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            throw new IllegalArgumentException("buffer does not belong to this pool");
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
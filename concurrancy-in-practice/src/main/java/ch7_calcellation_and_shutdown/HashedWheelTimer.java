@@ -0,0 +1,358 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Timer for a very large number of deadlines that are usually cancelled before they expire (time outs).
+ *
+ * Deadlines are kept in a circular array of buckets (the wheel). A single worker thread advances one bucket per tick and
+ * expires whatever is due in that bucket, so scheduling and cancelling are O(1) and no thread is held per pending deadline.
+ * The price is precision: a timeout fires up to one tick late.
+ *
+ * Expiry tasks run on the worker thread and must be short (e.g. Future.cancel), otherwise they delay every other timeout.
+ */
+@ThreadSafe
+public class HashedWheelTimer {
+
+    private static final int ST_INIT = 0, ST_STARTED = 1, ST_STOPPED = 2;
+    //Upper bound of new timeouts moved into the wheel per tick, so a burst of schedules cannot starve expiry.
+    private static final int MAX_TRANSFER_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Thread worker;
+
+    //Only the worker thread touches the wheel; other threads hand timeouts over through these queues.
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile long startTime;
+
+    private static final class Shared {
+        static final HashedWheelTimer TIMER = new HashedWheelTimer();
+    }
+
+    /**
+     * Default timer of the process, started with the first timeout, so callers do not each run a wheel thread.
+     */
+    public static HashedWheelTimer shared() {
+        return Shared.TIMER;
+    }
+
+    public HashedWheelTimer() {
+        this(10, MILLISECONDS, 512);
+    }
+
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(r -> {
+            Thread t = new Thread(r, "hashed-wheel-timer");
+            t.setDaemon(true);
+            return t;
+        }, tickDuration, unit, ticksPerWheel);
+    }
+
+    public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be > 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        //Power of two so the bucket index is a mask instead of a modulo.
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        if (size == 0) {
+            size = 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.worker = threadFactory.newThread(this::runWorker);
+    }
+
+    /**
+     * Schedules {@code task} to run once after {@code delay}. The timer is started lazily on the first call.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+        long elapsed = System.nanoTime() - startTime;
+        long nanos = unit.toNanos(Math.max(delay, 0));
+        //Clamped like ScheduledThreadPoolExecutor.triggerTime: a huge delay never fires instead of wrapping to the past.
+        long deadline = nanos > Long.MAX_VALUE - elapsed ? Long.MAX_VALUE : elapsed + nanos;
+        Timeout timeout = new Timeout(task, deadline);
+        pendingCount.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public long pendingTimeouts() {
+        return pendingCount.get();
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case ST_INIT:
+                if (state.compareAndSet(ST_INIT, ST_STARTED)) {
+                    worker.start();
+                }
+                break;
+            case ST_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("timer is stopped");
+        }
+        //Deadlines are relative to startTime, so wait until the worker has published it.
+        boolean interrupted = false;
+        while (startTime == 0) {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the worker thread and returns the timeouts that were neither expired nor cancelled.
+     */
+    public Set<Timeout> stop() throws InterruptedException {
+        if (Thread.currentThread() == worker) {
+            throw new IllegalStateException("stop() can not be called from a timer task");
+        }
+        if (state.getAndSet(ST_STOPPED) != ST_STARTED) {
+            return new HashSet<>();
+        }
+        worker.interrupt();
+        worker.join();
+
+        Set<Timeout> unprocessed = new HashSet<>();
+        for (Bucket bucket : wheel) {
+            bucket.drainTo(unprocessed);
+        }
+        for (Timeout t; (t = pending.poll()) != null; ) {
+            if (!t.isCancelled()) {
+                unprocessed.add(t);
+            }
+        }
+        cancelled.clear();
+        return unprocessed;
+    }
+
+    private void runWorker() {
+        long now = System.nanoTime();
+        startTime = now == 0 ? 1 : now;
+        started.countDown();
+
+        long tick = 0;
+        while (state.get() == ST_STARTED) {
+            if (waitForNextTick(tick) > 0) {
+                removeCancelled();
+                transferPending(tick);
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+        }
+    }
+
+    //Returns the nanos elapsed since start, or -1 when the timer was stopped while sleeping.
+    private long waitForNextTick(long tick) {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long elapsed = System.nanoTime() - startTime;
+            long sleepNanos = deadline - elapsed;
+            if (sleepNanos <= 0) {
+                return elapsed == 0 ? 1 : elapsed;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                if (state.get() == ST_STOPPED) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void transferPending(long tick) {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long expectedTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expectedTick - tick) / wheel.length;
+            //A deadline already in the past goes into the current bucket and fires on this tick.
+            long ticks = Math.max(expectedTick, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        for (Timeout timeout; (timeout = cancelled.poll()) != null; ) {
+            Bucket bucket = timeout.bucket;
+            if (bucket != null) {
+                bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Handle returned by {@link #newTimeout}. Cancelling is O(1): the timeout is only marked here and unlinked from its
+     * bucket by the worker on the next tick.
+     */
+    public final class Timeout {
+        private static final int INIT = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        //Guarded by confinement to the worker thread.
+        private long remainingRounds;
+        private Timeout next, prev;
+        private Bucket bucket;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            pendingCount.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            pendingCount.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                //A failing task must not kill the worker and with it every other timeout.
+                t.printStackTrace();
+            }
+        }
+    }
+
+    //Doubly linked list so a cancelled timeout can be unlinked without scanning the bucket.
+    private static final class Bucket {
+        //Confined to the worker thread.
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void drainTo(Set<Timeout> set) {
+            for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+                if (!timeout.isCancelled() && !timeout.isExpired()) {
+                    set.add(timeout);
+                }
+            }
+            head = tail = null;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer();
+        AtomicLong fired = new AtomicLong();
+        int n = 300_000;
+        Timeout[] timeouts = new Timeout[n];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            timeouts[i] = timer.newTimeout(fired::incrementAndGet, 200 + i % 800, MILLISECONDS);
+        }
+        //Most time outs never fire because the guarded work finishes in time.
+        for (int i = 0; i < n; i += 2) {
+            timeouts[i].cancel();
+        }
+        System.out.println("Scheduled and cancelled in " + MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS) + " ms");
+
+        Thread.sleep(1500);
+        System.out.println("fired = " + fired.get() + ", pending = " + timer.pendingTimeouts());
+        timer.stop();
+    }
+}
@@ -0,0 +1,102 @@
+package ch7_calcellation_and_shutdown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the same synthetic log to disk uncompressed and through {@link BlockCompressedOutputStream} at the fastest and
+ * the default deflate level, each with one and with several workers. For each run it reports input MB/s, the size on
+ * disk and the CPU seconds spent per GB of log. It then seeks into the middle of the compressed file.
+ */
+public class LogCompressionBenchmark {
+
+    private static final int CHUNK_BYTES = 32 << 20;
+    private static final int CHUNKS = 8;
+
+    public static void main(String[] args) throws Exception {
+        byte[] chunk = syntheticLog(CHUNK_BYTES);
+        int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        File file = File.createTempFile("logCompression", ".log");
+        file.deleteOnExit();
+
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            boolean print = round == 1;
+            run("uncompressed", file, chunk, print, () -> new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+                for (int n : new int[]{1, workers}) {
+                    ExecutorService pool = Executors.newFixedThreadPool(n);
+                    try {
+                        run("level " + (level < 0 ? 6 : level) + " x" + n, file, chunk, print, () -> new BlockCompressedOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(file), 1 << 16), pool, n, 256 * 1024, level));
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            }
+        }
+
+        try (BlockCompressedReader reader = new BlockCompressedReader(file.toPath())) {
+            long middle = reader.uncompressedLength() / 2;
+            int block = reader.blockOf(middle);
+            try (InputStream in = reader.openAt(block)) {
+                byte[] line = new byte[80];
+                int n = in.read(line);
+                System.out.printf("%d blocks; block %d holds offset %d and starts with: %s%n", reader.blockCount(), block,
+                        middle, new String(line, 0, n, StandardCharsets.UTF_8).split("\n")[0]);
+            }
+        }
+    }
+
+    private interface StreamFactory {
+        OutputStream open() throws IOException;
+    }
+
+    private static void run(String name, File file, byte[] chunk, boolean print, StreamFactory factory) throws IOException {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        try (OutputStream out = factory.open()) {
+            for (int i = 0; i < CHUNKS; i++) {
+                //Written in slices about the size a logger flushes, not as one huge array.
+                for (int off = 0; off < chunk.length; off += 8192) {
+                    out.write(chunk, off, Math.min(8192, chunk.length - off));
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        cpu = os.getProcessCpuTime() - cpu;
+        if (print) {
+            double gb = (double) CHUNKS * chunk.length / (1 << 30);
+            System.out.printf("%-13s %7.1f MB/s, %6.1f MB on disk, %5.2f CPU s/GB%n", name,
+                    gb * 1024 / (elapsed / 1e9), file.length() / 1048576.0, cpu / 1e9 / gb);
+        }
+    }
+
+    private static byte[] syntheticLog(int size) {
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        String[] messages = {"request served in %d ms", "cache miss for key %d", "connection %d closed by peer",
+                "retrying order %d after timeout", "user %d logged in"};
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 256);
+        long time = 1_700_000_000_000L;
+        while (sb.length() < size) {
+            time += random.nextInt(5);
+            sb.append(time).append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" [worker-").append(random.nextInt(16)).append("] ")
+                    .append(String.format(messages[random.nextInt(messages.length)], random.nextInt(100_000)))
+                    .append('\n');
+        }
+        return sb.substring(0, sb.lastIndexOf("\n") + 1).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,21 +1,51 @@
 package ch7_calcellation_and_shutdown;
 
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.ProfiledLock;
+import net.jcip.annotations.GuardedBy;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.sql.Time;
+import java.lang.System.Logger.Level;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 
 public class LogService {
         private final BlockingQueue<String> queue;
         private final LoggerThread logger;
+        private final OverloadPolicy policy;
+
+        //Messages the policy set aside that go back to the log per round, so queued ones are not held up for long.
+        private static final int DRAIN_BATCH = 64;
 
+        private final Counter logged = MetricsRegistry.global().counter("LogService.logged");
+
+        private final Lock profiled = ProfiledLock.ifEnabled("LogService");
+        @GuardedBy("this")
         private boolean isShutDown;
+        // Callers inside log(). The logger thread ends once none is left after shutdown and the queue is empty,
+        // whether their messages were queued or the policy dropped them.
+        @GuardedBy("this")
         private int reservation;
 
-        public LogService(BlockingQueue<String> queue, LoggerThread logger) throws IOException {
-            this.queue = new LinkedBlockingDeque<>(10);
-            this.logger = new LoggerThread(new PrintWriter(File.createTempFile("logFile","log")));
+        public LogService() throws IOException {
+            this(new PrintWriter(File.createTempFile("logFile","log")));
+        }
+
+        public LogService(PrintWriter writer) {
+            this(writer, new LinkedBlockingDeque<>(10), OverloadPolicy.block());
+        }
+
+        // policy decides what log() does when the queue is full, see OverloadPolicy.
+        public LogService(PrintWriter writer, BlockingQueue<String> queue, OverloadPolicy policy) {
+            this.queue = queue;
+            this.policy = policy;
+            this.logger = new LoggerThread(writer);
+            MetricsRegistry.global().gauge("LogService.queueDepth", this.queue::size);
+            MetricsRegistry.global().gauge("LogService.dropped", policy::getDropped);
+            MetricsRegistry.global().gauge("LogService.spilled", policy::getSpilled);
         }
 
         public void start(){
@@ -23,20 +53,46 @@ public class LogService {
         }
 
         public void stop(){
-            synchronized (this){
+            ProfiledLock.withLock(profiled, this, () -> {
                 isShutDown = true;
-            }
+            });
             logger.interrupt();
         }
 
         public void log(String message) throws InterruptedException {
-            synchronized (this){
+            log(Level.INFO, message);
+        }
+
+        public void log(Level level, String message) throws InterruptedException {
+            ProfiledLock.withLock(profiled, this, () -> {
                 if (isShutDown){
                     throw new IllegalStateException();
                 }
                 reservation++;
+            });
+            try {
+                if (policy.offer(queue, level, message)) {
+                    logged.inc();
+                }
+            } finally {
+                ProfiledLock.withLock(profiled, this, () -> {
+                    --reservation;
+                });
             }
-            queue.put(message);
+        }
+
+        public long getDropped() {
+            return policy.getDropped();
+        }
+
+        public long getSpilled() {
+            return policy.getSpilled();
+        }
+
+        //At most a quarter full, so spilled messages only compete with new ones for room once the disk keeps up.
+        private boolean belowLowWatermark() {
+            long size = queue.size();
+            return 4 * size <= size + queue.remainingCapacity();
         }
 
         private class LoggerThread  extends Thread{
@@ -47,28 +103,40 @@ public class LogService {
             }
             @Override
             public void run() {
-                while (true){
-                    try {
-                        synchronized (LogService.this){
-                            if (isShutDown && reservation == 0){
+                try {
+                    while (true){
+                        try {
+                            //isShutDown never goes back to false, so it may be read apart from the rest.
+                            boolean draining = ProfiledLock.withLock(profiled, LogService.this, () -> isShutDown);
+                            if (draining && ProfiledLock.withLock(profiled, LogService.this,
+                                    () -> reservation == 0 && queue.isEmpty())){
                                 break;
                             }
+                            while (belowLowWatermark() && policy.drainTo(writer, DRAIN_BATCH) > 0) {
+                                //Keep going while the queue has room.
+                            }
+                            // After shutdown, a caller still in log() may leave without queueing, so do not wait forever;
+                            // with messages set aside, neither may the queue stay empty.
+                            String msg = draining || policy.hasBacklog()
+                                    ? queue.poll(10, TimeUnit.MILLISECONDS) : queue.take();
+                            if (msg != null) {
+                                writer.println(msg);
+                            }
+                        } catch (InterruptedException e) {
+                            //Retry, stop() interrupts us to notice the shutdown
                         }
-                        String msg = queue.take();
-                        synchronized (LogService.this){
-                            --reservation;
-                        }
-                        writer.println(msg);
-                    } catch (InterruptedException e) {
-                        //Ignore the exception
-                    }finally {
-                        writer.close();
+                    }
+                    while (policy.drainTo(writer, DRAIN_BATCH) > 0) {
+                        //No caller is left, so this empties the policy.
+                    }
+                } finally {
+                    writer.close();
+                    try {
+                        policy.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
                 }
             }
         }
     }
-
-
-
-
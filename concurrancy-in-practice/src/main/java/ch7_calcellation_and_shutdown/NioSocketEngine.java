@@ -0,0 +1,426 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking alternative to {@link PrimeGenerator.SocketUsingTask}: instead of one blocked thread per socket, a few
+ * selector loops serve every connection.
+ *
+ * Each connection is owned by one loop, which performs all reads, writes and interest changes for it. Other threads
+ * talk to a loop by queueing a task and waking its selector up. Cancelling a connection deregisters and closes its
+ * channel, which is the non-blocking counterpart of SocketUsingTask closing its socket.
+ *
+ * Reads go into a direct buffer borrowed from a {@link DirectBufferPool} and returned right after
+ * {@link Handler#onRead}, so the buffer passed to the handler is only valid during that call.
+ */
+@ThreadSafe
+public class NioSocketEngine implements AutoCloseable {
+
+    public interface Handler {
+        default void onConnected(Connection connection) throws IOException {
+        }
+
+        //data is only valid for the duration of the call; copy whatever has to outlive it.
+        void onRead(Connection connection, ByteBuffer data) throws IOException;
+
+        //cause is null when the connection was cancelled or closed by the peer.
+        default void onClosed(Connection connection, Throwable cause) {
+        }
+    }
+
+    private final Loop[] loops;
+    private final DirectBufferPool buffers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public NioSocketEngine(int loopCount, int readBufferSize) throws IOException {
+        if (loopCount <= 0) {
+            throw new IllegalArgumentException("loopCount must be > 0: " + loopCount);
+        }
+        this.buffers = new DirectBufferPool(readBufferSize, loopCount * 4);
+        this.loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop("nio-loop-" + i);
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Starts a non-blocking connect. {@link Handler#onConnected} is called on the owning loop once it completes.
+     */
+    public Connection connect(SocketAddress address, Handler handler) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Connection connection = null;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            connection = new Connection(channel, nextLoop(), handler);
+            boolean connected = channel.connect(address);
+            Connection c = connection;
+            c.loop.execute(() -> c.register(connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connected));
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            //The caller gets the exception instead of onClosed, but the connection must not stay counted.
+            if (connection != null) {
+                connection.loop.connections.decrementAndGet();
+            }
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts connections on {@code address}; every accepted channel gets a new Handler and is spread over the loops.
+     * Returns the bound address, so port 0 can be used to pick a free port.
+     */
+    public InetSocketAddress listen(InetSocketAddress address, Supplier<? extends Handler> handlers) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.bind(address, 1024);
+            Loop loop = nextLoop();
+            loop.execute(() -> {
+                try {
+                    server.register(loop.selector, SelectionKey.OP_ACCEPT, new Acceptor(server, handlers));
+                } catch (IOException e) {
+                    closeQuietly(server);
+                }
+            });
+            return (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    public int connectionCount() {
+        int count = 0;
+        for (Loop loop : loops) {
+            count += loop.connections.get();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the loops and waits for them, which closes every connection. If interrupted while waiting, returns early
+     * with the interrupt status set; the loops still stop.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        try {
+            for (Loop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Loop nextLoop() {
+        if (closed.get()) {
+            throw new IllegalStateException("engine is closed");
+        }
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+
+    public final class Connection {
+        private final SocketChannel channel;
+        private final Loop loop;
+        private final Handler handler;
+        private final Queue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+        //Confined to the loop thread.
+        private SelectionKey key;
+        private boolean connected; //writes stay queued until the connect has completed
+
+        private Connection(SocketChannel channel, Loop loop, Handler handler) {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = handler;
+            loop.connections.incrementAndGet();
+        }
+
+        /**
+         * Queues {@code data} for writing. The buffer is owned by the connection until it has been written.
+         */
+        public void write(ByteBuffer data) {
+            if (closed.get()) {
+                return;
+            }
+            writes.add(data);
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        /**
+         * Deregisters and closes the channel. Safe to call from any thread and more than once.
+         */
+        public void cancel() {
+            close(null);
+        }
+
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        /**
+         * Completes when the connection is closed, exceptionally if it failed.
+         */
+        public CompletableFuture<Void> closeFuture() {
+            return closeFuture;
+        }
+
+        public SocketChannel channel() {
+            return channel;
+        }
+
+        private void register(int ops, boolean connected) {
+            try {
+                key = channel.register(loop.selector, ops, this);
+                if (connected) {
+                    connected();
+                }
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        private void handle(int readyOps) {
+            try {
+                if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                    if (!channel.finishConnect()) {
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    connected();
+                }
+                if ((readyOps & SelectionKey.OP_READ) != 0) {
+                    read();
+                }
+                if ((readyOps & SelectionKey.OP_WRITE) != 0 && key.isValid()) {
+                    flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        private void connected() throws IOException {
+            connected = true;
+            handler.onConnected(this);
+            if (!writes.isEmpty()) {
+                flush();
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buffer = buffers.acquire();
+            try {
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    close(null);
+                } else if (n > 0) {
+                    buffer.flip();
+                    handler.onRead(this, buffer);
+                }
+            } finally {
+                buffers.release(buffer);
+            }
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            if (!connected || !key.isValid()) {
+                return;
+            }
+            try {
+                for (ByteBuffer head; (head = writes.peek()) != null; ) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        //Socket buffer is full, continue when the selector reports the channel writable.
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writes.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException | RuntimeException e) {
+                close(e);
+            }
+        }
+
+        private void close(Throwable cause) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            //Closing the channel also cancels its key, the selector drops it on the next select.
+            closeQuietly(channel);
+            writes.clear();
+            loop.connections.decrementAndGet();
+            //Handler callbacks all run on the owning loop, also when another thread cancels.
+            loop.execute(() -> {
+                try {
+                    handler.onClosed(this, cause);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (cause == null) {
+                        closeFuture.complete(null);
+                    } else {
+                        closeFuture.completeExceptionally(cause);
+                    }
+                }
+            });
+        }
+    }
+
+    private final class Acceptor {
+        private final ServerSocketChannel server;
+        private final Supplier<? extends Handler> handlers;
+
+        Acceptor(ServerSocketChannel server, Supplier<? extends Handler> handlers) {
+            this.server = server;
+            this.handlers = handlers;
+        }
+
+        void accept() throws IOException {
+            for (SocketChannel channel; (channel = server.accept()) != null; ) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                    Connection connection = new Connection(channel, nextLoop(), handlers.get());
+                    connection.loop.execute(() -> connection.register(SelectionKey.OP_READ, true));
+                } catch (IOException | RuntimeException e) {
+                    //Only this channel is lost, the server keeps accepting.
+                    closeQuietly(channel);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connections = new AtomicInteger();
+        private volatile boolean terminated;
+
+        Loop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        //Runs task on the loop thread, or right away once the loop has ended and nobody else would.
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread || terminated) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+                if (terminated) {
+                    runQueued(); //The loop may have drained the queue for the last time before our add.
+                }
+            }
+        }
+
+        private void runQueued() {
+            for (Runnable task; (task = tasks.poll()) != null; ) {
+                runSafely(task);
+            }
+        }
+
+        //A failing task or handler is reported and must not stop the loop for every other connection on it.
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed.get()) {
+                    selector.select();
+                    runQueued();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        Object attachment = key.attachment();
+                        try {
+                            if (attachment instanceof Connection) {
+                                ((Connection) attachment).handle(key.readyOps());
+                            } else {
+                                ((Acceptor) attachment).accept();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection) {
+                        ((Connection) attachment).cancel();
+                    } else {
+                        closeQuietly(key.channel());
+                    }
+                }
+                closeQuietly(selector);
+                terminated = true;
+                //Tasks queued while we were stopping; later ones run on their caller.
+                runQueued();
+            }
+        }
+    }
+
+    private static void closeQuietly(Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //Ignore
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.System.Logger.Level;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What {@link LogService#log} does with a message, in particular when the queue to the logger thread is full because
+ * the disk stalls. Only {@link #block()} can hold a caller for as long as the stall lasts; the others bound or remove
+ * the wait so logging stays off the application's critical path, and count what they drop or spill.
+ *
+ * One policy instance belongs to one LogService.
+ */
+@ThreadSafe
+public abstract class OverloadPolicy implements Closeable {
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+
+    /**
+     * Hands message to the queue or disposes of it. Returns true when it was queued.
+     */
+    protected abstract boolean offer(BlockingQueue<String> queue, Level level, String message) throws InterruptedException;
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    protected void dropped() {
+        dropped.increment();
+    }
+
+    protected void spilled() {
+        spilled.increment();
+    }
+
+    /**
+     * Called by the logger thread while the queue is below its low watermark, and once more before it ends: writes up to
+     * max messages this policy set aside back to the log, oldest first, and returns how many it wrote.
+     */
+    protected int drainTo(PrintWriter writer, int max) {
+        return 0;
+    }
+
+    //Logger thread only: whether drainTo may find messages later, so the logger must not wait for the queue alone.
+    protected boolean hasBacklog() {
+        return false;
+    }
+
+    //Called by the logger thread when it ends.
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Waits for room as long as it takes; what LogService always did.
+     */
+    public static OverloadPolicy block() {
+        return new OverloadPolicy() {
+            @Override
+            protected boolean offer(BlockingQueue<String> queue, Level level, String message) throws InterruptedException {
+                queue.put(message);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Waits for room up to the timeout, then drops the message.
+     */
+    public static OverloadPolicy block(long timeout, TimeUnit unit) {
+        long nanos = unit.toNanos(timeout);
+        return new OverloadPolicy() {
+            @Override
+            protected boolean offer(BlockingQueue<String> queue, Level level, String message) throws InterruptedException {
+                if (queue.offer(message, nanos, TimeUnit.NANOSECONDS)) {
+                    return true;
+                }
+                dropped();
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Drops the message when the queue is full.
+     */
+    public static OverloadPolicy dropNewest() {
+        return new OverloadPolicy() {
+            @Override
+            protected boolean offer(BlockingQueue<String> queue, Level level, String message) {
+                if (queue.offer(message)) {
+                    return true;
+                }
+                dropped();
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Makes room by dropping the oldest queued message, so the file keeps the most recent ones.
+     */
+    public static OverloadPolicy dropOldest() {
+        return new OverloadPolicy() {
+            @Override
+            protected boolean offer(BlockingQueue<String> queue, Level level, String message) {
+                while (!queue.offer(message)) {
+                    //Another producer may take the freed slot first, then we evict again.
+                    if (queue.poll() != null) {
+                        dropped();
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Once the queue is more than half full, keeps a message of a level with the given probability (levels not in
+     * the map are always kept), and hands the kept ones to fallback.
+     */
+    public static OverloadPolicy sample(Map<Level, Double> keepProbability, OverloadPolicy fallback) {
+        Map<Level, Double> keep = new EnumMap<>(keepProbability);
+        return new OverloadPolicy() {
+            @Override
+            protected boolean offer(BlockingQueue<String> queue, Level level, String message) throws InterruptedException {
+                Double p = keep.get(level);
+                //remainingCapacity and size are cheap on LinkedBlockingQueue/Deque, both read counts.
+                if (p != null && queue.remainingCapacity() < queue.size()
+                        && ThreadLocalRandom.current().nextDouble() >= p) {
+                    dropped();
+                    return false;
+                }
+                return fallback.offer(queue, level, message);
+            }
+
+            @Override
+            public long getDropped() {
+                return super.getDropped() + fallback.getDropped();
+            }
+
+            @Override
+            public long getSpilled() {
+                return fallback.getSpilled();
+            }
+
+            @Override
+            protected int drainTo(PrintWriter writer, int max) {
+                return fallback.drainTo(writer, max);
+            }
+
+            @Override
+            protected boolean hasBacklog() {
+                return fallback.hasBacklog();
+            }
+
+            @Override
+            public void close() throws IOException {
+                fallback.close();
+            }
+        };
+    }
+
+    /**
+     * Appends what does not fit in the queue to a memory mapped spill file of the given capacity instead; once that is
+     * full too, drops. The callers copy into the page cache without locking or waiting for the disk. The logger thread
+     * writes spilled messages back to the log whenever the queue has drained below its low watermark, so they end up in
+     * the log later than messages queued at the same time. The file is scratch space, cleared when the policy is
+     * created and when it is closed.
+     */
+    public static OverloadPolicy spill(Path file, int capacity) throws IOException {
+        return new Spill(file, capacity);
+    }
+
+    private static final class Spill extends OverloadPolicy {
+        private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+        //Header of the first reservation that did not fit: no record follows it.
+        private static final int END = -1;
+        private static final byte[] ZEROS = new byte[4096];
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        //Next free byte; callers reserve their record with one getAndAdd and then copy without locking.
+        private final AtomicLong position = new AtomicLong();
+        //Logger thread only: start of the next record to write back.
+        private int readPosition;
+
+        Spill(Path file, int capacity) throws IOException {
+            if (capacity < 2 * Integer.BYTES) {
+                throw new IllegalArgumentException("capacity too small: " + capacity);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        @Override
+        protected boolean offer(BlockingQueue<String> queue, Level level, String message) {
+            if (queue.offer(message)) {
+                return true;
+            }
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            //An int header then the message, rounded up so every header stays aligned for atomic access.
+            int size = (Integer.BYTES + bytes.length + 3) & ~3;
+            long at = position.getAndAdd(size);
+            if (at + size > buffer.capacity()) {
+                if (at + Integer.BYTES <= buffer.capacity()) {
+                    INT.setRelease(buffer, (int) at, END);
+                }
+                dropped();
+                return false;
+            }
+            buffer.put((int) at + Integer.BYTES, bytes);
+            //The header commits the record. Length + 1, so an empty message is not taken for one still being copied.
+            INT.setRelease(buffer, (int) at, bytes.length + 1);
+            spilled();
+            return false;
+        }
+
+        @Override
+        protected int drainTo(PrintWriter writer, int max) {
+            int written = 0;
+            while (written < max) {
+                int header = readPosition + Integer.BYTES <= buffer.capacity()
+                        ? (int) INT.getAcquire(buffer, readPosition) : END;
+                if (header == END) {
+                    //Every record is written back and every later reservation was dropped: start over.
+                    clear(Math.min(buffer.capacity(), readPosition + Integer.BYTES));
+                    readPosition = 0;
+                    position.set(0);
+                    continue;
+                }
+                if (header == 0) {
+                    //Caught up, or a caller is still copying its record. Rewind only if nobody reserved meanwhile.
+                    if (readPosition > 0 && position.get() == readPosition) {
+                        clear(readPosition);
+                        if (position.compareAndSet(readPosition, 0)) {
+                            readPosition = 0;
+                        }
+                    }
+                    break;
+                }
+                byte[] bytes = new byte[header - 1];
+                buffer.get(readPosition + Integer.BYTES, bytes);
+                writer.println(new String(bytes, StandardCharsets.UTF_8));
+                readPosition += (Integer.BYTES + bytes.length + 3) & ~3;
+                written++;
+            }
+            return written;
+        }
+
+        @Override
+        protected boolean hasBacklog() {
+            return position.get() != readPosition;
+        }
+
+        //Zeroes [0, end), so the headers there read as not yet written once callers reserve them again.
+        private void clear(int end) {
+            for (int i = 0; i < end; i += ZEROS.length) {
+                buffer.put(i, ZEROS, 0, Math.min(ZEROS.length, end - i));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.truncate(0);
+            channel.close();
+        }
+    }
+}
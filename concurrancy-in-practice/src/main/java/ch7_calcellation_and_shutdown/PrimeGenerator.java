@@ -4,7 +4,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class PrimeGenerator {
 
@@ -28,23 +32,33 @@ public class PrimeGenerator {
 
     }
 
-    private static ScheduledExecutorService cancService = Executors.newScheduledThreadPool(10);
+    //One wheel thread serves every pending deadline, instead of parking a thread in task.get() per call.
+    private static final HashedWheelTimer cancTimer = HashedWheelTimer.shared();
     private static ExecutorService exeTask = Executors.newFixedThreadPool(10);
 
-    public static void timedRun(Runnable r, long timeout, TimeUnit timeUnit) throws InterruptedException {
-        Future<?> task = exeTask.submit(r);
+    public static Future<?> timedRun(Runnable r, long timeout, TimeUnit timeUnit) {
+        TimedTask task = new TimedTask(r);
+        //Interrupt if running, harmless if the task has already completed.
+        task.deadline = cancTimer.newTimeout(() -> task.cancel(true), timeout, timeUnit);
+        exeTask.execute(task);
+        return task;
+    }
 
-        try {
-            task.get(timeout,timeUnit);
-        } catch (ExecutionException e) {
-            //Exception thrown in task, rethrow
-        } catch (TimeoutException e) {
-           //Task will be cancelled here.
-        }finally {
-            //Harmless if task is completed successfully
-            task.cancel(true); //Interrupt if running
+    private static class TimedTask extends FutureTask<Void> {
+        private volatile HashedWheelTimer.Timeout deadline;
+
+        TimedTask(Runnable r) {
+            super(r, null);
         }
 
+        @Override
+        protected void done() {
+            //Task finished or was cancelled, the deadline is not needed any more.
+            HashedWheelTimer.Timeout d = deadline;
+            if (d != null) {
+                d.cancel();
+            }
+        }
     }
 
 
@@ -100,7 +114,158 @@ public class PrimeGenerator {
     }
 
 
-    public class ReaderThread extends Thread {
+    /**
+     * Reads length-prefixed frames (a 4 byte big-endian length followed by the payload) from a channel without copying
+     * them to the heap.
+     *
+     * Bytes are read into slabs, direct buffers borrowed from a {@link DirectBufferPool}. Every complete frame is handed to
+     * the handler as a read-only slice of its slab, and the slab goes back to the pool once the reader and every frame cut
+     * from it have been released. Only the unfinished frame at the end of a full slab is copied into the next slab.
+     *
+     * As in the socket version, interrupt also closes the channel, so the thread stops even when blocked in read.
+     */
+    public static class ReaderThread extends Thread {
+
+        public interface FrameHandler {
+            //Ownership of the frame passes to the handler, which must release it, possibly on another thread.
+            void onFrame(Frame frame);
+        }
+
+        private final ReadableByteChannel channel;
+        private final DirectBufferPool pool;
+        private final FrameHandler handler;
+        private final int maxFrameLength;
+
+        public ReaderThread(ReadableByteChannel channel, DirectBufferPool pool, FrameHandler handler) {
+            this.channel = channel;
+            this.pool = pool;
+            this.handler = handler;
+            this.maxFrameLength = pool.bufferSize() - Integer.BYTES;
+        }
+
+        @Override
+        public void interrupt() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Ignore
+            } finally {
+                super.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            Slab slab = new Slab(pool);
+            try {
+                while (true) {
+                    if (!slab.buffer.hasRemaining()) {
+                        slab = slab.next();
+                    }
+                    if (channel.read(slab.buffer) < 0) {
+                        break;
+                    }
+                    parse(slab);
+                }
+            } catch (IOException e) {
+                //Allow thread to exit.
+            } finally {
+                slab.release();
+            }
+        }
+
+        private void parse(Slab slab) throws IOException {
+            ByteBuffer buffer = slab.buffer;
+            int end = buffer.position();
+            while (end - slab.readIndex >= Integer.BYTES) {
+                int length = buffer.getInt(slab.readIndex);
+                if (length < 0 || length > maxFrameLength) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                int start = slab.readIndex + Integer.BYTES;
+                if (end - start < length) {
+                    break;
+                }
+                slab.retain();
+                slab.readIndex = start + length;
+                handler.onFrame(new Frame(slab.readOnly.slice(start, length), slab));
+            }
+            //Nothing left in the slab and no frame still refers to it, start over at the beginning.
+            if (slab.readIndex == end && slab.isExclusive()) {
+                buffer.clear();
+                slab.readIndex = 0;
+            }
+        }
+
+        private static final class Slab {
+            private final DirectBufferPool pool;
+            private final ByteBuffer buffer;
+            //Frames are sliced from this view, so each frame costs one buffer object and no copy.
+            private final ByteBuffer readOnly;
+            private final AtomicInteger refs = new AtomicInteger(1);
+            //Confined to the reader thread.
+            private int readIndex;
+
+            Slab(DirectBufferPool pool) {
+                this.pool = pool;
+                this.buffer = pool.acquire();
+                this.readOnly = buffer.asReadOnlyBuffer();
+            }
+
+            void retain() {
+                refs.incrementAndGet();
+            }
+
+            //Only the reader can add references, so if it holds the last one no frame can be reading the slab.
+            boolean isExclusive() {
+                return refs.get() == 1;
+            }
+
+            void release() {
+                if (refs.decrementAndGet() == 0) {
+                    pool.release(buffer);
+                }
+            }
+
+            //Moves the unfinished frame at the end of this full slab into a fresh one and drops the reader's reference.
+            Slab next() {
+                Slab next = new Slab(pool);
+                ByteBuffer tail = buffer.duplicate();
+                tail.limit(buffer.position()).position(readIndex);
+                next.buffer.put(tail);
+                release();
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Read-only view of one frame payload inside a pooled slab. {@link #release()} must be called exactly once when the
+     * payload is no longer needed; the bytes must not be read after that.
+     */
+    public static final class Frame {
+        private static final AtomicIntegerFieldUpdater<Frame> RELEASED =
+                AtomicIntegerFieldUpdater.newUpdater(Frame.class, "released");
+
+        private final ByteBuffer payload;
+        private final ReaderThread.Slab slab;
+        private volatile int released;
+
+        private Frame(ByteBuffer payload, ReaderThread.Slab slab) {
+            this.payload = payload;
+            this.slab = slab;
+        }
+
+        public ByteBuffer payload() {
+            return payload;
+        }
+
+        public void release() {
+            if (!RELEASED.compareAndSet(this, 0, 1)) {
+                throw new IllegalStateException("frame already released");
+            }
+            slab.release();
+        }
     }
 
 
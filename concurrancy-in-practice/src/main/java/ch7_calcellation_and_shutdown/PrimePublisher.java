@@ -0,0 +1,260 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Prime generator as a {@link Flow.Publisher}: primes are computed only when a subscriber has asked for them, instead
+ * of a thread filling a bounded queue until it blocks and then waiting to be interrupted or flagged.
+ *
+ * Every subscription has its own generator and its own demand, so subscribers never hold each other back. Generation
+ * runs on the executor, one task at a time per subscription. Only request() schedules a task; cancel() is checked
+ * before every element, so generation stops after at most the element being computed. A subscription with unbounded
+ * demand gives its executor thread back every {@link #FAIR_SHARE} elements so others sharing the pool get a turn.
+ *
+ * {@link #bigIntegers} publishes one BigInteger per onNext. {@link #longBatches} publishes primes as long[] batches
+ * from a segmented sieve, a demand of n meaning n batches, which costs one onNext per batch instead of per prime.
+ */
+@ThreadSafe
+public class PrimePublisher<T> implements Flow.Publisher<T> {
+    static final int FAIR_SHARE = 1024;
+
+    private final Executor executor;
+    private final Supplier<Generator<T>> generators;
+
+    private PrimePublisher(Executor executor, Supplier<Generator<T>> generators) {
+        this.executor = executor;
+        this.generators = generators;
+    }
+
+    /**
+     * Primes from 2 upwards, one per onNext, found with BigInteger.nextProbablePrime like the other generators here.
+     */
+    public static PrimePublisher<BigInteger> bigIntegers(Executor executor) {
+        return new PrimePublisher<>(executor, () -> {
+            BigInteger[] last = {BigInteger.ONE};
+            return () -> last[0] = last[0].nextProbablePrime();
+        });
+    }
+
+    /**
+     * Primes from 2 upwards in batches of batchSize, in ascending order across batches.
+     */
+    public static PrimePublisher<long[]> longBatches(Executor executor, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        return new PrimePublisher<>(executor, () -> {
+            SegmentedSieve sieve = new SegmentedSieve();
+            return () -> sieve.next(batchSize);
+        });
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        new PrimeSubscription<>(subscriber, generators.get(), executor).start();
+    }
+
+    @FunctionalInterface
+    private interface Generator<T> {
+        T next();
+    }
+
+    private static final class PrimeSubscription<T> implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final Generator<T> generator;
+        private final Executor executor;
+        //Elements requested and not yet delivered, Long.MAX_VALUE meaning unbounded.
+        private final AtomicLong requested = new AtomicLong();
+        //Number of times a drain was asked for; nonzero while a drain task is scheduled or running.
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        //Set by request() on a non-positive n, reported from the drain so onError does not race onNext.
+        private volatile IllegalArgumentException badRequest;
+
+        PrimeSubscription(Flow.Subscriber<? super T> subscriber, Generator<T> generator, Executor executor) {
+            this.subscriber = subscriber;
+            this.generator = generator;
+            this.executor = executor;
+        }
+
+        void start() {
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                requested.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            }
+            if (wip.getAndIncrement() == 0) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+                subscriber.onError(e);
+            }
+        }
+
+        //Drain loop, never runs in two threads at once for one subscription.
+        @Override
+        public void run() {
+            int missed = wip.get();
+            int delivered = 0;
+            while (true) {
+                long r = requested.get();
+                long emitted = 0;
+                while (emitted != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (badRequest != null) {
+                        cancelled = true;
+                        subscriber.onError(badRequest);
+                        return;
+                    }
+                    T next;
+                    try {
+                        next = generator.next();
+                    } catch (RuntimeException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(next);
+                    emitted++;
+                    if (++delivered == FAIR_SHARE) {
+                        //Keep wip non zero so no request() schedules a second drain, and come back later.
+                        consume(r, emitted);
+                        schedule();
+                        return;
+                    }
+                }
+                if (cancelled) {
+                    return;
+                }
+                if (badRequest != null) {
+                    cancelled = true;
+                    subscriber.onError(badRequest);
+                    return;
+                }
+                consume(r, emitted);
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void consume(long r, long emitted) {
+            if (r != Long.MAX_VALUE && emitted != 0) {
+                requested.addAndGet(-emitted);
+            }
+        }
+    }
+
+    /**
+     * Sieve of Eratosthenes over consecutive segments, extending its table of sieving primes as the segments grow.
+     */
+    @NotThreadSafe
+    static final class SegmentedSieve {
+        private static final int SEGMENT = 1 << 16;
+
+        private final boolean[] composite = new boolean[SEGMENT];
+        private int[] basePrimes = {2, 3, 5, 7};
+        private int baseLimit = 10; //basePrimes holds every prime below this
+        private long low = 2;
+        private long[] found = new long[0];
+        private int position;
+
+        long next() {
+            if (position == found.length) {
+                sieveNextSegment();
+            }
+            return found[position++];
+        }
+
+        long[] next(int count) {
+            long[] batch = new long[count];
+            for (int i = 0; i < count; ) {
+                if (position == found.length) {
+                    sieveNextSegment();
+                }
+                int n = Math.min(count - i, found.length - position);
+                System.arraycopy(found, position, batch, i, n);
+                position += n;
+                i += n;
+            }
+            return batch;
+        }
+
+        private void sieveNextSegment() {
+            long high = low + SEGMENT;
+            long root = (long) Math.sqrt((double) high) + 1;
+            if (root >= baseLimit) {
+                extendBase((int) Math.max(root + 1, 2L * baseLimit));
+            }
+            Arrays.fill(composite, false);
+            for (int p : basePrimes) {
+                long square = (long) p * p;
+                if (square >= high) {
+                    break;
+                }
+                long start = Math.max(square, (low + p - 1) / p * p);
+                for (long m = start; m < high; m += p) {
+                    composite[(int) (m - low)] = true;
+                }
+            }
+            long[] primes = new long[SEGMENT / 4];
+            int n = 0;
+            for (int i = 0; i < SEGMENT; i++) {
+                if (!composite[i]) {
+                    if (n == primes.length) {
+                        primes = Arrays.copyOf(primes, n * 2);
+                    }
+                    primes[n++] = low + i;
+                }
+            }
+            found = Arrays.copyOf(primes, n);
+            position = 0;
+            low = high;
+        }
+
+        private void extendBase(int limit) {
+            boolean[] notPrime = new boolean[limit];
+            int[] primes = new int[Math.max(16, limit / 2)];
+            int n = 0;
+            for (int i = 2; i < limit; i++) {
+                if (!notPrime[i]) {
+                    primes[n++] = i;
+                    for (long j = (long) i * i; j < limit; j += i) {
+                        notPrime[(int) j] = true;
+                    }
+                }
+            }
+            basePrimes = Arrays.copyOf(primes, n);
+            baseLimit = limit;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch7_calcellation_and_shutdown;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Primes per second handed from a generator to a consumer: through a bounded ArrayBlockingQueue as in
+ * BlockingPrimeGenerator, and through {@link PrimePublisher} with the consumer requesting a window at a time. Both are
+ * run with BigInteger.nextProbablePrime and with the segmented sieve, the latter queued one Long at a time or published
+ * in long[] batches.
+ */
+public class PrimePublisherBenchmark {
+
+    private static final int BIG_PRIMES = 100_000;
+    private static final int LONG_PRIMES = 20_000_000;
+    private static final int WINDOW = 256;
+    private static final int BATCH = 1024;
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+                boolean print = round == 1;
+                report(print, "BigInteger, blocking queue", BIG_PRIMES, queued(BIG_PRIMES, () -> {
+                    BigInteger[] last = {BigInteger.ONE};
+                    return () -> last[0] = last[0].nextProbablePrime();
+                }));
+                report(print, "BigInteger, publisher", BIG_PRIMES,
+                        published(PrimePublisher.bigIntegers(executor), BIG_PRIMES, WINDOW, p -> 1));
+                report(print, "long sieve, blocking queue", LONG_PRIMES, queued(LONG_PRIMES, () -> {
+                    PrimePublisher.SegmentedSieve sieve = new PrimePublisher.SegmentedSieve();
+                    return sieve::next;
+                }));
+                report(print, "long sieve, publisher x" + BATCH, LONG_PRIMES,
+                        published(PrimePublisher.longBatches(executor, BATCH), LONG_PRIMES / BATCH, 4, p -> BATCH));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void report(boolean print, String name, long primes, long nanos) {
+        if (print) {
+            System.out.printf("%-34s %8.2f M primes/s%n", name, primes / (nanos / 1e3));
+        }
+    }
+
+    //Producer thread puts into a bounded queue, this thread takes; the producer is interrupted at the end.
+    private static long queued(int count, Supplier<Supplier<Object>> generators) throws InterruptedException {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(WINDOW);
+        Supplier<Object> generator = generators.get();
+        Thread producer = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    queue.put(generator.get());
+                }
+            } catch (InterruptedException e) {
+                //Cancelled.
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += queue.take().hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.interrupt();
+        producer.join();
+        sink = sum;
+        return elapsed;
+    }
+
+    //Subscribes, requests a window at a time and cancels after count elements.
+    private static <T> long published(Flow.Publisher<T> publisher, int count, int window,
+                                      ToIntFunction<T> primesIn) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        publisher.subscribe(new Flow.Subscriber<T>() {
+            private Flow.Subscription subscription;
+            private int received;
+            private long sum;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(window);
+            }
+
+            @Override
+            public void onNext(T item) {
+                sum += item.hashCode() + primesIn.applyAsInt(item);
+                if (++received == count) {
+                    subscription.cancel();
+                    sink = sum;
+                    done.countDown();
+                } else if (received % window == 0) {
+                    subscription.request(window);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        done.await();
+        return System.nanoTime() - start;
+    }
+}
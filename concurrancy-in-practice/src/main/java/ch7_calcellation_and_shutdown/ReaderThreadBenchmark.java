@@ -0,0 +1,95 @@
+package ch7_calcellation_and_shutdown;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes length-prefixed frames through a Pipe into a {@link PrimeGenerator.ReaderThread} that hands them to a worker
+ * thread over a queue. Reports throughput and the bytes allocated by the reader thread per frame, which stays small
+ * because payloads are never copied to the heap.
+ *
+ * Usage: ReaderThreadBenchmark [frames] [payloadSize]
+ */
+public class ReaderThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Pipe pipe = Pipe.open();
+        DirectBufferPool pool = new DirectBufferPool(64 * 1024, 64);
+        BlockingQueue<PrimeGenerator.Frame> handoff = new ArrayBlockingQueue<>(4096);
+
+        PrimeGenerator.ReaderThread reader = new PrimeGenerator.ReaderThread(pipe.source(), pool, frame -> {
+            try {
+                handoff.put(frame);
+            } catch (InterruptedException e) {
+                frame.release();
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        long[] checksum = new long[1];
+        Thread worker = new Thread(() -> {
+            try {
+                for (int i = 0; i < frames; i++) {
+                    PrimeGenerator.Frame frame = handoff.take();
+                    checksum[0] += frame.payload().get(0) + frame.payload().remaining();
+                    frame.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Thread writer = new Thread(() -> {
+            ByteBuffer batch = ByteBuffer.allocateDirect(1000 * (Integer.BYTES + payloadSize));
+            for (int i = 0; i < 1000; i++) {
+                batch.putInt(payloadSize);
+                for (int b = 0; b < payloadSize; b++) {
+                    batch.put((byte) i);
+                }
+            }
+            try {
+                for (int sent = 0; sent < frames; sent += 1000) {
+                    batch.clear();
+                    batch.limit(Math.min(1000, frames - sent) * (Integer.BYTES + payloadSize));
+                    while (batch.hasRemaining()) {
+                        pipe.sink().write(batch);
+                    }
+                }
+                pipe.sink().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long start = System.nanoTime();
+        reader.start();
+        worker.start();
+        writer.start();
+        //Sample the reader while it is still alive, allocated bytes are not reported for terminated threads.
+        long allocated = 0;
+        while (worker.isAlive()) {
+            long a = threads.getThreadAllocatedBytes(reader.getId());
+            if (a > 0) {
+                allocated = a;
+            }
+            worker.join(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        reader.join();
+
+        double seconds = elapsed / 1e9;
+        double megabytes = (double) frames * (Integer.BYTES + payloadSize) / (1024 * 1024);
+        System.out.printf("frames=%d time=%d ms frames/s=%.0f MB/s=%.1f reader allocated=%.1f bytes/frame (checksum %d)%n",
+                frames, TimeUnit.NANOSECONDS.toMillis(elapsed), frames / seconds, megabytes / seconds,
+                (double) allocated / frames, checksum[0]);
+    }
+}
@@ -0,0 +1,139 @@
+package ch7_calcellation_and_shutdown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ping-pong over loopback against an echo server running on {@link NioSocketEngine}: every client connection sends a
+ * small message and waits for the echo, {@code rounds} times. The same load is run once with the selector engine on
+ * the client side and once with a blocking Socket and a thread per connection, as SocketUsingTask does.
+ *
+ * Usage: SocketEngineBenchmark [connections] [rounds]
+ */
+public class SocketEngineBenchmark {
+
+    private static final int MESSAGE_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        try (NioSocketEngine server = new NioSocketEngine(2, 16 * 1024)) {
+            InetSocketAddress address = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), EchoHandler::new);
+
+            report("selector engine", connections, rounds, nio(address, connections, rounds));
+            report("thread per socket", connections, rounds, blocking(address, connections, rounds));
+        }
+    }
+
+    private static void report(String name, int connections, int rounds, long[] result) {
+        long nanos = result[0];
+        double seconds = nanos / 1e9;
+        System.out.printf("%-18s connections=%d client threads=%d time=%d ms round trips/s=%.0f%n",
+                name, connections, result[1], TimeUnit.NANOSECONDS.toMillis(nanos), connections * (double) rounds / seconds);
+    }
+
+    private static long[] nio(InetSocketAddress address, int connections, int rounds) throws Exception {
+        CountDownLatch done = new CountDownLatch(connections);
+        int threadsBefore = Thread.activeCount();
+        long start = System.nanoTime();
+        try (NioSocketEngine client = new NioSocketEngine(2, 16 * 1024)) {
+            int threads = Thread.activeCount() - threadsBefore;
+            for (int i = 0; i < connections; i++) {
+                client.connect(address, new PingHandler(rounds, done));
+            }
+            done.await();
+            return new long[]{System.nanoTime() - start, threads};
+        }
+    }
+
+    private static long[] blocking(InetSocketAddress address, int connections, int rounds) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            new Thread(() -> {
+                try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    byte[] message = new byte[MESSAGE_SIZE];
+                    for (int r = 0; r < rounds; r++) {
+                        out.write(message);
+                        for (int read = 0; read < MESSAGE_SIZE; ) {
+                            int n = in.read(message, read, MESSAGE_SIZE - read);
+                            if (n < 0) {
+                                throw new IOException("closed by peer");
+                            }
+                            read += n;
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return new long[]{System.nanoTime() - start, connections};
+    }
+
+    private static class EchoHandler implements NioSocketEngine.Handler {
+        @Override
+        public void onRead(NioSocketEngine.Connection connection, ByteBuffer data) {
+            //The read buffer goes back to the pool after this call, so the echo needs its own copy.
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            connection.write(copy);
+        }
+    }
+
+    private static class PingHandler implements NioSocketEngine.Handler {
+        private final CountDownLatch done;
+        private int roundsLeft;
+        private int pending;
+
+        PingHandler(int rounds, CountDownLatch done) {
+            this.roundsLeft = rounds;
+            this.done = done;
+        }
+
+        @Override
+        public void onConnected(NioSocketEngine.Connection connection) {
+            ping(connection);
+        }
+
+        @Override
+        public void onRead(NioSocketEngine.Connection connection, ByteBuffer data) {
+            pending -= data.remaining();
+            if (pending > 0) {
+                return;
+            }
+            if (--roundsLeft == 0) {
+                connection.cancel();
+            } else {
+                ping(connection);
+            }
+        }
+
+        @Override
+        public void onClosed(NioSocketEngine.Connection connection, Throwable cause) {
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+            done.countDown();
+        }
+
+        private void ping(NioSocketEngine.Connection connection) {
+            pending = MESSAGE_SIZE;
+            connection.write(ByteBuffer.allocate(MESSAGE_SIZE));
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package ch7_calcellation_and_shutdown;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogService} in which every producer thread appends to its own staging buffer, so log() shares nothing with
+ * other producers. The logger thread harvests the buffers and merges them by timestamp, so the file is still in global
+ * order.
+ *
+ * A buffer is a single producer, single consumer ring of (timestamp, message) slots. The logger only writes records up
+ * to a watermark that no producer can still go below. Before stamping a record, a producer announces a lower bound of
+ * its stamp. The watermark is the smallest announced bound, or the time the logger started the round when no producer is
+ * in log(). Anything stamped later waits for the next round.
+ *
+ * The same announcement makes shutdown reliable without the reservation counter of LogService. A producer announces
+ * before it checks the shutdown flag, and stop() sets the flag before the logger checks the announcements. So either
+ * the producer sees the flag and throws, or the logger waits for its record and writes it. Every message accepted
+ * before stop() is in the file when the logger thread ends.
+ */
+@ThreadSafe
+public class StagedLogService {
+    //No record being appended.
+    private static final long IDLE = Long.MAX_VALUE;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final PrintWriter writer;
+    private final int bufferCapacity;
+    private final LoggerThread logger = new LoggerThread();
+    private final List<StagingBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<StagingBuffer> staging = ThreadLocal.withInitial(this::register);
+    private final Counter producerWaits = MetricsRegistry.global().counter("StagedLogService.producerWaits");
+
+    private volatile boolean isShutDown;
+    //Records appended to buffers that have been retired; written by the logger thread only.
+    private volatile long retiredLogged;
+
+    public StagedLogService(PrintWriter writer) {
+        this(writer, 1024);
+    }
+
+    /**
+     * @param bufferCapacity records each producer thread can stage before log() waits for the logger
+     */
+    public StagedLogService(PrintWriter writer, int bufferCapacity) {
+        if (Integer.bitCount(bufferCapacity) != 1) {
+            throw new IllegalArgumentException("bufferCapacity must be a power of two: " + bufferCapacity);
+        }
+        this.writer = writer;
+        this.bufferCapacity = bufferCapacity;
+        //The tails already count the appends, so log() does not touch a shared counter.
+        MetricsRegistry.global().gauge("StagedLogService.logged", this::logged);
+    }
+
+    public void start() {
+        logger.start();
+    }
+
+    /**
+     * Stops accepting messages. The logger thread writes everything accepted so far, closes the writer and ends.
+     */
+    public void stop() {
+        isShutDown = true;
+        LockSupport.unpark(logger);
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        logger.join();
+    }
+
+    public void log(String message) throws InterruptedException {
+        staging.get().append(message);
+    }
+
+    private long logged() {
+        long logged = retiredLogged;
+        for (StagingBuffer buffer : buffers) {
+            logged += buffer.tail;
+        }
+        return logged;
+    }
+
+    private StagingBuffer register() {
+        StagingBuffer buffer = new StagingBuffer(Thread.currentThread(), bufferCapacity);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private final class StagingBuffer {
+        private final Thread owner;
+        private final long[] stamps;
+        private final String[] messages;
+        private final int mask;
+        //Lower bound of the stamp of the record being appended, IDLE between appends.
+        private volatile long announced = IDLE;
+        //Written by the owner only: records before tail are published.
+        private volatile long tail;
+        //Written by the logger only: records before head are written out, their slots are free.
+        private volatile long head;
+
+        StagingBuffer(Thread owner, int capacity) {
+            this.owner = owner;
+            this.stamps = new long[capacity];
+            this.messages = new String[capacity];
+            this.mask = capacity - 1;
+        }
+
+        void append(String message) throws InterruptedException {
+            long t = tail;
+            if (t - head == stamps.length) {
+                awaitSpace(t);
+            }
+            announced = System.nanoTime();
+            if (isShutDown) {
+                announced = IDLE;
+                throw new IllegalStateException("log service is shut down");
+            }
+            int i = (int) t & mask;
+            //Stamped after the announcement, so never below it.
+            stamps[i] = System.nanoTime();
+            messages[i] = message;
+            tail = t + 1;
+            announced = IDLE;
+        }
+
+        //The logger is behind; the only time a producer waits for another thread.
+        private void awaitSpace(long t) throws InterruptedException {
+            producerWaits.inc();
+            while (t - head == stamps.length) {
+                if (isShutDown) {
+                    throw new IllegalStateException("log service is shut down");
+                }
+                LockSupport.unpark(logger);
+                LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+
+    //Records of one buffer that are below the watermark of the current round.
+    private static final class Cursor {
+        final StagingBuffer buffer;
+        long next;
+        final long end;
+
+        Cursor(StagingBuffer buffer, long next, long end) {
+            this.buffer = buffer;
+            this.next = next;
+            this.end = end;
+        }
+
+        long stamp() {
+            return buffer.stamps[(int) next & buffer.mask];
+        }
+    }
+
+    private class LoggerThread extends Thread {
+        //Only used by the logger thread.
+        private final PriorityQueue<Cursor> merge = new PriorityQueue<>((a, b) -> Long.compare(a.stamp(), b.stamp()));
+
+        LoggerThread() {
+            super("staged-log-writer");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    //Read the flag before draining: once it is set, a drain that finds no producer in log() is the last one.
+                    boolean last = isShutDown;
+                    int written = drain(last);
+                    if (last && written < 0) {
+                        break;
+                    }
+                    if (written <= 0) {
+                        writer.flush();
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Writes out, in stamp order, every published record below the watermark. Returns the number of records written,
+         * or -1 when the buffers were quiescent: nobody was appending and everything published has been written.
+         */
+        private int drain(boolean shutDown) {
+            long watermark = System.nanoTime();
+            boolean quiescent = true;
+            for (StagingBuffer buffer : buffers) {
+                long announced = buffer.announced;
+                if (announced != IDLE) {
+                    quiescent = false;
+                    watermark = Math.min(watermark, announced);
+                }
+            }
+            if (quiescent && shutDown) {
+                //No producer can append any more, take everything.
+                watermark = Long.MAX_VALUE;
+            }
+            List<StagingBuffer> retired = null;
+            for (StagingBuffer buffer : buffers) {
+                //Tail read after the announcements: every record stamped below the watermark is published by now.
+                long tail = buffer.tail;
+                long end = buffer.head;
+                while (end < tail && buffer.stamps[(int) end & buffer.mask] <= watermark) {
+                    end++;
+                }
+                if (end > buffer.head) {
+                    merge.add(new Cursor(buffer, buffer.head, end));
+                } else if (tail == buffer.head && !buffer.owner.isAlive()) {
+                    if (retired == null) {
+                        retired = new ArrayList<>();
+                    }
+                    retired.add(buffer);
+                }
+                if (end < tail) {
+                    quiescent = false;
+                }
+            }
+            if (retired != null) {
+                buffers.removeAll(retired);
+                //After the removal, so a concurrent logged() may miss them for a moment but never counts them twice.
+                long count = retiredLogged;
+                for (StagingBuffer buffer : retired) {
+                    count += buffer.tail;
+                }
+                retiredLogged = count;
+            }
+            int written = 0;
+            Cursor c;
+            while ((c = merge.poll()) != null) {
+                int i = (int) c.next & c.buffer.mask;
+                writer.println(c.buffer.messages[i]);
+                c.buffer.messages[i] = null;
+                c.next++;
+                written++;
+                if (c.next < c.end) {
+                    merge.add(c);
+                } else {
+                    c.buffer.head = c.end;
+                }
+            }
+            return quiescent && written == 0 ? -1 : written;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("stagedLog", ".log");
+        file.deleteOnExit();
+        StagedLogService service = new StagedLogService(new PrintWriter(file));
+        service.start();
+        int producers = 4;
+        int perProducer = 200_000;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        service.log(id + " " + i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        service.stop();
+        service.awaitTermination();
+        long elapsed = System.nanoTime() - start;
+
+        //Each producer's own messages must come out in the order it logged them.
+        int[] expected = new int[producers];
+        List<String> lines = Files.readAllLines(file.toPath());
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            int p = Integer.parseInt(parts[0]);
+            if (Integer.parseInt(parts[1]) != expected[p]++) {
+                throw new AssertionError("out of order: " + line);
+            }
+        }
+        System.out.printf("%d lines from %d producers in %.1f ms%n", lines.size(), producers, elapsed / 1e6);
+    }
+}
@@ -0,0 +1,337 @@
+package ch7_calcellation_and_shutdown;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Fans a group of related tasks out and joins them as one unit, with a single deadline shared by all of them.
+ *
+ * As soon as the policy knows the outcome (first success for {@link AnySuccess}, first failure for {@link AllSuccess})
+ * the remaining forks are cancelled through their Futures, the same interruption policy timedRun relies on. The deadline
+ * is kept on the {@link HashedWheelTimer#shared() shared} HashedWheelTimer, so a scope does not hold a thread while it
+ * waits.
+ *
+ * Forks run on the supplied Executor, or on a new thread per fork when a ThreadFactory is given (anySuccessOn,
+ * allSuccessOn), which is the natural fit for virtual threads (e.g. {@code Thread.ofVirtual().factory()} on Java 21).
+ *
+ * <pre>
+ * try (TaskScope.AnySuccess&lt;String&gt; scope = TaskScope.anySuccess(executor, 200, MILLISECONDS)) {
+ *     for (Replica r : replicas) scope.fork(() -&gt; r.query(q));
+ *     return scope.join();
+ * }
+ * </pre>
+ */
+@ThreadSafe
+public abstract class TaskScope<T> implements AutoCloseable {
+
+    private final Executor executor;
+    //Set by the factory methods before the scope is handed out, never changed afterwards.
+    private HashedWheelTimer.Timeout deadline;
+
+    @GuardedBy("this") private final List<Fork> forks = new ArrayList<>();
+    //Forks not completed yet, and forks whose run() has not returned; a cancelled fork completes before its body stops.
+    @GuardedBy("this") private int pending;
+    @GuardedBy("this") private int running;
+    @GuardedBy("this") private boolean shutdown;
+    @GuardedBy("this") private boolean timedOut;
+    @GuardedBy("this") private boolean joined;
+
+    protected TaskScope(Executor executor) {
+        this.executor = executor;
+    }
+
+    public static <T> AnySuccess<T> anySuccess(Executor executor, long timeout, TimeUnit unit) {
+        return withDeadline(new AnySuccess<>(executor), timeout, unit);
+    }
+
+    public static <T> AnySuccess<T> anySuccessOn(ThreadFactory threadFactory, long timeout, TimeUnit unit) {
+        return anySuccess(r -> threadFactory.newThread(r).start(), timeout, unit);
+    }
+
+    public static <T> AllSuccess<T> allSuccess(Executor executor, long timeout, TimeUnit unit) {
+        return withDeadline(new AllSuccess<>(executor), timeout, unit);
+    }
+
+    public static <T> AllSuccess<T> allSuccessOn(ThreadFactory threadFactory, long timeout, TimeUnit unit) {
+        return allSuccess(r -> threadFactory.newThread(r).start(), timeout, unit);
+    }
+
+    //Schedules the deadline once the scope is fully constructed, so the wheel thread never sees a partial one.
+    private static <S extends TaskScope<?>> S withDeadline(S scope, long timeout, TimeUnit unit) {
+        TaskScope<?> s = scope;
+        s.deadline = HashedWheelTimer.shared().newTimeout(s::onDeadline, timeout, unit);
+        return scope;
+    }
+
+    /**
+     * Starts {@code task} in this scope. A fork made after the outcome is known is returned already cancelled.
+     */
+    public Future<T> fork(Callable<? extends T> task) {
+        Fork fork = new Fork(task);
+        synchronized (this) {
+            if (joined) {
+                throw new IllegalStateException("fork after join");
+            }
+            if (shutdown) {
+                fork.cancel(false);
+                return fork;
+            }
+            forks.add(fork);
+            fork.registered = true;
+            pending++;
+            running++;
+        }
+        try {
+            executor.execute(fork);
+        } catch (RejectedExecutionException e) {
+            fork.fail(e);
+            forkExited(fork);
+            throw e;
+        }
+        return fork;
+    }
+
+    /**
+     * Cancels every fork that is still running and the deadline, then waits until all forks have completed.
+     */
+    @Override
+    public void close() {
+        deadline.cancel();
+        shutdown(false);
+        boolean interrupted = false;
+        synchronized (this) {
+            joined = true;
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Called with the scope lock held each time a fork completes; returns true when the outcome of the scope is known.
+    @GuardedBy("this")
+    protected abstract boolean onComplete(Future<T> fork);
+
+    protected synchronized List<Future<T>> forks() {
+        return new ArrayList<>(forks);
+    }
+
+    protected void awaitOutcome() throws InterruptedException, TimeoutException {
+        synchronized (this) {
+            joined = true;
+            while (!shutdown && pending > 0) {
+                wait();
+            }
+            if (timedOut) {
+                throw new TimeoutException("scope deadline expired");
+            }
+        }
+        deadline.cancel();
+    }
+
+    private void forkDone(Fork fork) {
+        boolean decided;
+        synchronized (this) {
+            if (!fork.registered) {
+                return;
+            }
+            pending--;
+            decided = !shutdown && onComplete(fork);
+            notifyAll();
+        }
+        if (decided) {
+            shutdown(false);
+        }
+    }
+
+    private synchronized void forkExited(Fork fork) {
+        if (fork.registered) {
+            running--;
+            notifyAll();
+        }
+    }
+
+    private void onDeadline() {
+        shutdown(true);
+    }
+
+    private void shutdown(boolean expired) {
+        List<Fork> toCancel;
+        synchronized (this) {
+            if (!shutdown) {
+                shutdown = true;
+                //All forks may have completed without deciding (AllSuccess), then join has its results.
+                timedOut = expired && pending > 0;
+                notifyAll();
+            }
+            toCancel = new ArrayList<>(forks);
+        }
+        //Cancel outside the lock, done() of every cancelled fork takes it again.
+        for (Fork fork : toCancel) {
+            fork.cancel(true);
+        }
+    }
+
+    private class Fork extends FutureTask<T> {
+        @GuardedBy("TaskScope.this") boolean registered;
+
+        Fork(Callable<? extends T> task) {
+            super(task::call);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        //The executor calls this even for a fork cancelled before it started, which then returns at once.
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                forkExited(this);
+            }
+        }
+
+        @Override
+        protected void done() {
+            forkDone(this);
+        }
+    }
+
+    /**
+     * Returns the result of the first fork that succeeds and cancels the rest (hedged requests to replicas).
+     */
+    public static final class AnySuccess<T> extends TaskScope<T> {
+        @GuardedBy("this") private boolean hasResult;
+        @GuardedBy("this") private T result;
+        @GuardedBy("this") private Throwable failure;
+
+        private AnySuccess(Executor executor) {
+            super(executor);
+        }
+
+        @Override
+        protected boolean onComplete(Future<T> fork) {
+            if (fork.isCancelled()) {
+                return false;
+            }
+            try {
+                result = fork.get();
+                hasResult = true;
+                return true;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                //Not possible, the fork has completed.
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * @throws ExecutionException if every fork failed, with the other failures suppressed in the first one
+         * @throws TimeoutException   if no fork succeeded before the deadline
+         */
+        public T join() throws InterruptedException, ExecutionException, TimeoutException {
+            awaitOutcome();
+            synchronized (this) {
+                if (hasResult) {
+                    return result;
+                }
+                throw new ExecutionException("no fork succeeded", failure);
+            }
+        }
+    }
+
+    /**
+     * Returns the results of all forks in fork order, or fails as soon as one of them fails (scatter/gather).
+     */
+    public static final class AllSuccess<T> extends TaskScope<T> {
+        @GuardedBy("this") private Throwable failure;
+
+        private AllSuccess(Executor executor) {
+            super(executor);
+        }
+
+        @Override
+        protected boolean onComplete(Future<T> fork) {
+            if (fork.isCancelled()) {
+                return false;
+            }
+            try {
+                fork.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * @throws ExecutionException with the first failure, after the other forks were cancelled
+         * @throws TimeoutException   if not all forks completed before the deadline
+         */
+        public List<T> join() throws InterruptedException, ExecutionException, TimeoutException {
+            awaitOutcome();
+            synchronized (this) {
+                if (failure != null) {
+                    throw new ExecutionException(failure);
+                }
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> fork : forks()) {
+                results.add(fork.get());
+            }
+            return results;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService exec = Executors.newCachedThreadPool();
+        Random random = new Random();
+        try {
+            try (AnySuccess<String> scope = anySuccess(exec, 500, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < 3; i++) {
+                    int replica = i;
+                    int latency = random.nextInt(300);
+                    scope.fork(() -> {
+                        Thread.sleep(latency);
+                        return "replica " + replica + " answered in " + latency + " ms";
+                    });
+                }
+                System.out.println(scope.join());
+            }
+
+            try (AllSuccess<Integer> scope = allSuccess(exec, 100, TimeUnit.MILLISECONDS)) {
+                scope.fork(() -> 1);
+                scope.fork(() -> {
+                    Thread.sleep(10_000); //Interrupted when the deadline expires.
+                    return 2;
+                });
+                System.out.println(scope.join());
+            } catch (TimeoutException e) {
+                System.out.println("gather failed: " + e.getMessage());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package metrics;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Increments go to a LongAdder, which stripes contended updates over several cells, so recording
+ * from many threads costs a few nanoseconds and reading sums the cells.
+ */
+@ThreadSafe
+public class Counter implements CounterMBean {
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
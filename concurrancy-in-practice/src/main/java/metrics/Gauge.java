@@ -0,0 +1,26 @@
+package metrics;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Value sampled on read, e.g. a queue size. Nothing is recorded on the hot path at all.
+ */
+@ThreadSafe
+public class Gauge implements GaugeMBean {
+    private volatile LongSupplier supplier;
+
+    Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    void setSupplier(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue() {
+        return supplier.getAsLong();
+    }
+}
@@ -0,0 +1,5 @@
+package metrics;
+
+public interface GaugeMBean {
+    long getValue();
+}
@@ -0,0 +1,44 @@
+package metrics;
+
+import ch3_sharing_object.SynchronizedInteger;
+import ch4_composing_object.Counter;
+import ch5_building_blocks.TestHarness;
+
+/**
+ * Times Counter.increment and SynchronizedInteger get/set with lock profiling off and on, from one thread (every acquire
+ * uncontended) and from several (contended), then prints {@link ProfiledLock#report()}. The difference per operation is
+ * the profiling overhead.
+ */
+public class LockProfilingBenchmark {
+
+    private static final int OPS = 2_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        TestHarness harness = new TestHarness();
+
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            long[] off = run(harness, threads, false);
+            long[] on = run(harness, threads, true);
+            if (round == 1) {
+                System.out.printf("1 thread:   off %.1f ns/op, on %.1f ns/op%n", off[0] / (double) OPS, on[0] / (double) OPS);
+                double ops = (double) OPS * threads;
+                System.out.printf("%d threads: off %.1f ns/op, on %.1f ns/op%n", threads, off[1] / ops, on[1] / ops);
+                System.out.print(ProfiledLock.report());
+            }
+        }
+    }
+
+    private static long[] run(TestHarness harness, int threads, boolean profiled) throws InterruptedException {
+        System.setProperty(ProfiledLock.PROPERTY, profiled ? "Counter,SynchronizedInteger" : "");
+        Counter counter = new Counter();
+        SynchronizedInteger integer = new SynchronizedInteger();
+        Runnable task = () -> {
+            for (int i = 0; i < OPS; i++) {
+                counter.increment();
+                integer.setValue(integer.getValue() + 1);
+            }
+        };
+        return new long[]{harness.timeTask(1, task), harness.timeTask(threads, task)};
+    }
+}
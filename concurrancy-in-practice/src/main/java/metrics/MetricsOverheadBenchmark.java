@@ -0,0 +1,65 @@
+package metrics;
+
+import ch5_building_blocks.TestHarness;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times a cache lookup loop, the typical hot path the metrics are wired into, bare, with a counter increment and with a
+ * counter plus a timer around every lookup. The difference per operation is the instrumentation overhead.
+ *
+ * The timer case includes two System.nanoTime calls, which dominate it on machines with a slow clock source; time only
+ * operations that are long compared to that.
+ */
+public class MetricsOverheadBenchmark {
+
+    private static final int OPS = 5_000_000;
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        MetricsRegistry registry = new MetricsRegistry(null);
+        Counter counter = registry.counter("bench.hits");
+        Timer timer = registry.timer("bench.latency");
+        Map<Integer, Integer> cache = new ConcurrentHashMap<>();
+        for (int i = 0; i < 1024; i++) {
+            cache.put(i, i);
+        }
+        TestHarness harness = new TestHarness();
+
+        for (int round = 0; round < 2; round++) { //First round warms the JIT up.
+            long bare = harness.timeTask(threads, () -> {
+                long sum = 0;
+                for (int i = 0; i < OPS; i++) {
+                    sum += cache.get(i & 1023);
+                }
+                sink = sum;
+            });
+            long counted = harness.timeTask(threads, () -> {
+                long sum = 0;
+                for (int i = 0; i < OPS; i++) {
+                    sum += cache.get(i & 1023);
+                    counter.inc();
+                }
+                sink = sum;
+            });
+            long timed = harness.timeTask(threads, () -> {
+                long sum = 0;
+                for (int i = 0; i < OPS; i++) {
+                    long start = Timer.start();
+                    sum += cache.get(i & 1023);
+                    counter.inc();
+                    timer.stop(start);
+                }
+                sink = sum;
+            });
+            if (round == 1) {
+                double ops = (double) OPS * threads;
+                System.out.printf("bare %.2f ns/op, +counter %.2f ns/op, +counter+timer %.2f ns/op%n",
+                        bare / ops, counted / ops, timed / ops);
+                System.out.print(registry.report());
+            }
+        }
+    }
+}
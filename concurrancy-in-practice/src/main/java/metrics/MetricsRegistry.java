@@ -0,0 +1,112 @@
+package metrics;
+
+import net.jcip.annotations.ThreadSafe;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * In-process registry of named counters, gauges and timers.
+ *
+ * Look a metric up once, keep the reference in a field and record into it on the hot path; the lookup is a map access,
+ * recording is not. Every metric of the {@link #global()} registry is also published as an MBean under
+ * {@code concurrency.metrics:type=<Counter|Gauge|Timer>,name=<name>}, so jconsole or any JMX client can read it.
+ */
+@ThreadSafe
+public class MetricsRegistry {
+    private static final String DOMAIN = "concurrency.metrics";
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry(ManagementFactory.getPlatformMBeanServer());
+
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+    private final MBeanServer server;
+
+    /**
+     * @param server where metrics are published, or null to keep them in process only
+     */
+    public MetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name) {
+        return get(name, Counter.class, CounterMBean.class, Counter::new);
+    }
+
+    public Timer timer(String name) {
+        return get(name, Timer.class, TimerMBean.class, Timer::new);
+    }
+
+    /**
+     * Registers a gauge. Registering the same name again replaces the supplier, so the last instance of a component wins.
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = get(name, Gauge.class, GaugeMBean.class, () -> new Gauge(supplier));
+        gauge.setSupplier(supplier);
+        return gauge;
+    }
+
+    /**
+     * One line per metric, sorted by name.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : new TreeMap<>(metrics).entrySet()) {
+            Object m = e.getValue();
+            sb.append(e.getKey()).append(' ');
+            if (m instanceof Counter) {
+                sb.append("count=").append(((Counter) m).getCount());
+            } else if (m instanceof Gauge) {
+                sb.append("value=").append(((Gauge) m).getValue());
+            } else {
+                Timer t = (Timer) m;
+                sb.append(String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                        t.getCount(), t.getMeanMicros(), t.getP50Micros(), t.getP99Micros(), t.getMaxMicros()));
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private <T, M> T get(String name, Class<T> type, Class<M> mbeanInterface, Supplier<T> factory) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            T created = factory.get();
+            metric = metrics.putIfAbsent(name, created);
+            if (metric == null) {
+                metric = created;
+                publish(name, type, mbeanInterface, created);
+            }
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    private <M> void publish(String name, Class<?> type, Class<M> mbeanInterface, Object metric) {
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type.getSimpleName() + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(mbeanInterface.cast(metric), mbeanInterface), objectName);
+            }
+        } catch (JMException e) {
+            //Metrics must never break the component reporting them.
+            e.printStackTrace();
+        }
+    }
+}
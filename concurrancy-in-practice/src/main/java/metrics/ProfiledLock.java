@@ -0,0 +1,240 @@
+package metrics;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Lock that records how long threads wait for it and hold it, for classes that otherwise use their intrinsic lock.
+ * Such a class asks {@link #ifEnabled} for one under its name when it is created, which returns null unless the name is
+ * listed in {@code -Dmetrics.lockProfiling} (comma separated, e.g. {@code Counter,LogService}), and runs every critical
+ * section through {@link #withLock}. That always holds the monitor as well, so the state stays guarded by it and
+ * client-side locking keeps working; the ProfiledLock in front of it is where the methods contend and get measured.
+ *
+ * All locks created with one name share one profile: acquisitions, contended acquisitions, wait and hold time timers in
+ * the {@link MetricsRegistry#global()} registry under {@code lock.<name>.*}, and the call sites that waited longest.
+ * An uncontended acquire is a tryLock and a plain increment under the lock; only every
+ * {@code metrics.lockProfiling.sample}-th hold (default 16) is timed. Contended acquires are always timed, since they
+ * wait anyway, and one in {@link #CALL_SITE_SAMPLE} of them walks the stack to find its caller.
+ *
+ * Hold times include time spent in await on a Condition of the lock.
+ */
+@ThreadSafe
+public class ProfiledLock implements Lock {
+    static final String PROPERTY = "metrics.lockProfiling";
+    static final int CALL_SITE_SAMPLE = 8;
+    private static final int HOLD_SAMPLE = Math.max(1, Integer.getInteger(PROPERTY + ".sample", 16));
+    private static final ConcurrentMap<String, Profile> PROFILES = new ConcurrentHashMap<>();
+    private static final StackWalker WALKER = StackWalker.getInstance();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Profile profile;
+    @GuardedBy("lock") private long acquisitions;
+    @GuardedBy("lock") private long holdStart; //0 when this hold is not timed
+    @GuardedBy("lock") private long contendedSinceFlush; //Added to the profile with the acquisitions, see acquired.
+
+    private ProfiledLock(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * A profiled lock for a class or component called name when {@code metrics.lockProfiling} lists it, null otherwise.
+     */
+    public static Lock ifEnabled(String name) {
+        for (String enabled : System.getProperty(PROPERTY, "").split(",")) {
+            if (enabled.trim().equals(name)) {
+                return new ProfiledLock(PROFILES.computeIfAbsent(name, Profile::new));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates body holding monitor, and profiled first unless it is null. A thread that already holds the monitor, by
+     * client-side locking, never blocks on profiled: everyone else takes profiled before the monitor, so it cannot
+     * deadlock. Do not wait on the monitor inside body while profiled, the ProfiledLock stays held.
+     */
+    public static <T> T withLock(Lock profiled, Object monitor, Supplier<T> body) {
+        boolean profile = profiled != null && (profiled.tryLock() || lockUnlessHeld(profiled, monitor));
+        try {
+            synchronized (monitor) {
+                return body.get();
+            }
+        } finally {
+            if (profile) {
+                profiled.unlock();
+            }
+        }
+    }
+
+    //Only asked when profiled is taken, which is when the monitor may be ours.
+    private static boolean lockUnlessHeld(Lock profiled, Object monitor) {
+        if (Thread.holdsLock(monitor)) {
+            return false;
+        }
+        profiled.lock();
+        return true;
+    }
+
+    public static void withLock(Lock profiled, Object monitor, Runnable body) {
+        boolean profile = profiled != null && (profiled.tryLock() || lockUnlessHeld(profiled, monitor));
+        try {
+            synchronized (monitor) {
+                body.run();
+            }
+        } finally {
+            if (profile) {
+                profiled.unlock();
+            }
+        }
+    }
+
+    /**
+     * One line per profiled lock name, the longest total wait first, with its top waiting call sites.
+     */
+    public static String report() {
+        List<Profile> profiles = new ArrayList<>(PROFILES.values());
+        profiles.sort(Comparator.comparingLong((Profile p) -> p.totalWait.sum()).reversed());
+        StringBuilder sb = new StringBuilder();
+        for (Profile p : profiles) {
+            //Both counted in the same flushes, so the ratio is over the same acquisitions.
+            long acquired = p.acquisitions.sum();
+            long contended = p.sampledContended.sum();
+            sb.append(String.format("%s waited=%.1fms acquired=%d contended=%d (%.1f%%) "
+                            + "wait p50=%.1fus p99=%.1fus max=%.1fus hold p50=%.1fus p99=%.1fus max=%.1fus",
+                    p.name, p.totalWait.sum() / 1e6, acquired, contended,
+                    acquired == 0 ? 0.0 : 100.0 * contended / acquired,
+                    p.wait.getP50Micros(), p.wait.getP99Micros(), p.wait.getMaxMicros(),
+                    p.hold.getP50Micros(), p.hold.getP99Micros(), p.hold.getMaxMicros()));
+            sb.append(System.lineSeparator());
+            p.callSites.entrySet().stream()
+                    .sorted(Map.Entry.<String, LongAdder>comparingByValue(Comparator.comparingLong(LongAdder::sum)).reversed())
+                    .limit(3)
+                    .forEach(e -> sb.append(String.format("    %s sampled wait=%.1fms%n", e.getKey(), e.getValue().sum() / 1e6)));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void lock() {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            waited(start);
+        }
+        acquired();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lockInterruptibly();
+            waited(start);
+        }
+        acquired();
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (lock.tryLock()) {
+            acquired();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            if (!lock.tryLock(time, unit)) {
+                return false;
+            }
+            waited(start);
+        }
+        acquired();
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        if (lock.getHoldCount() == 1 && holdStart != 0) {
+            profile.hold.record(System.nanoTime() - holdStart);
+            holdStart = 0;
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    private void acquired() {
+        if (lock.getHoldCount() > 1) {
+            return; //Reentered: neither a new acquisition nor a new hold.
+        }
+        if (++acquisitions % HOLD_SAMPLE == 0) {
+            profile.acquisitions.add(HOLD_SAMPLE);
+            profile.sampledContended.add(contendedSinceFlush);
+            contendedSinceFlush = 0;
+            holdStart = System.nanoTime();
+        }
+    }
+
+    //Called holding the lock.
+    private void waited(long start) {
+        long nanos = System.nanoTime() - start;
+        profile.contended.inc();
+        contendedSinceFlush++;
+        profile.wait.record(nanos);
+        profile.totalWait.add(nanos);
+        if (ThreadLocalRandom.current().nextInt(CALL_SITE_SAMPLE) == 0) {
+            profile.callSites.computeIfAbsent(callSite(), s -> new LongAdder()).add(nanos);
+        }
+    }
+
+    private static String callSite() {
+        return WALKER.walk(frames -> frames
+                .filter(f -> !f.getClassName().equals(ProfiledLock.class.getName()))
+                .findFirst()
+                .map(f -> f.getClassName() + "." + f.getMethodName() + ":" + f.getLineNumber())
+                .orElse("unknown"));
+    }
+
+    private static final class Profile {
+        final String name;
+        //Counted in steps of HOLD_SAMPLE per lock, so up to that many per lock instance are not shown yet.
+        final LongAdder acquisitions = new LongAdder();
+        //Contended acquisitions among those counted in acquisitions; contended has all of them.
+        final LongAdder sampledContended = new LongAdder();
+        final LongAdder totalWait = new LongAdder();
+        final Counter contended;
+        final Timer wait;
+        final Timer hold;
+        final ConcurrentMap<String, LongAdder> callSites = new ConcurrentHashMap<>();
+
+        Profile(String name) {
+            this.name = name;
+            MetricsRegistry registry = MetricsRegistry.global();
+            contended = registry.counter("lock." + name + ".contended");
+            wait = registry.timer("lock." + name + ".wait");
+            hold = registry.timer("lock." + name + ".hold");
+            registry.gauge("lock." + name + ".acquisitions", acquisitions::sum);
+        }
+    }
+}
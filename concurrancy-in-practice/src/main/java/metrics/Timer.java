@@ -0,0 +1,130 @@
+package metrics;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram. Recordings go to one of a fixed set of striped histograms, picked by the recording thread's hash,
+ * so threads rarely share a stripe and a record is a few uncontended atomic adds. Readers merge all stripes. Memory is
+ * bounded by the number of stripes, not by the number of threads that ever recorded.
+ *
+ * Buckets are powers of two split in four, so a reported percentile is at most 25% above the real value.
+ */
+@ThreadSafe
+public class Timer implements TimerMBean {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int SUM = BUCKETS, MAX = BUCKETS + 1;
+    //A cache line of slack after sum and max keeps them off the line of whatever is allocated next.
+    private static final int STRIPE_LENGTH = BUCKETS + 2 + 8;
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    public Timer() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(STRIPE_LENGTH);
+        }
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public void stop(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        int h = System.identityHashCode(Thread.currentThread());
+        AtomicLongArray stripe = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        stripe.getAndIncrement(bucketOf(nanos));
+        stripe.getAndAdd(SUM, nanos);
+        //Read before the CAS: once the max has settled, almost every record skips it.
+        long max;
+        while (nanos > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, nanos)) {
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return merge().count;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        Snapshot s = merge();
+        return s.count == 0 ? 0 : s.sum / (double) s.count / 1000;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return merge().percentile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return merge().percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return merge().max / 1000.0;
+    }
+
+    private Snapshot merge() {
+        Snapshot s = new Snapshot();
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                s.buckets[i] += stripe.get(i);
+            }
+            s.sum += stripe.get(SUM);
+            s.max = Math.max(s.max, stripe.get(MAX));
+        }
+        for (long c : s.buckets) {
+            s.count += c;
+        }
+        return s;
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    private static final class Snapshot {
+        final long[] buckets = new long[BUCKETS];
+        long count, sum, max;
+
+        long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package metrics;
+
+public interface TimerMBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+}